@@ -17,7 +17,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.brum.wgdiag.BuildConfig;
 import com.brum.wgdiag.R;
+import com.brum.wgdiag.bluetooth.SimulatedTransport;
 import com.brum.wgdiag.command.Processor;
 import com.brum.wgdiag.util.Executor;
 
@@ -27,6 +29,8 @@ import java.util.Map;
 
 
 public class ChooseAdapterActivity extends ListActivity {
+    private static final String SIMULATOR_NAME = "ELM327 simulator";
+
     private Map<String, String> bluetoothDevices = new HashMap<>();
 
     @Override
@@ -73,6 +77,9 @@ public class ChooseAdapterActivity extends ListActivity {
         for (BluetoothDevice device : adapter.getBondedDevices()) {
             this.bluetoothDevices.put(device.getName(), device.getAddress());
         }
+        if (BuildConfig.DEBUG) {
+            this.bluetoothDevices.put(SIMULATOR_NAME, SimulatedTransport.ADDRESS);
+        }
 
         ListAdapter listAdapter = new ArrayAdapter<>(
                 this,
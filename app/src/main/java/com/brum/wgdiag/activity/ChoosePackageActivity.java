@@ -3,10 +3,14 @@ package com.brum.wgdiag.activity;
 import android.app.ListActivity;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.util.SparseBooleanArray;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -25,7 +29,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Activity for selecting what diagnostic package to be executed.
+ * Activity for selecting what diagnostic packages to be executed. The selected packages are
+ * executed together, see {@link DiagActivity}.
  */
 public class ChoosePackageActivity extends ListActivity {
 
@@ -33,6 +38,7 @@ public class ChoosePackageActivity extends ListActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Executor.bind(this);
+        DiagDataLogger.setLogDirectory(Environment.getExternalStorageDirectory());
 
         setContentView(R.layout.choose_packages_activity);
 
@@ -45,44 +51,84 @@ public class ChoosePackageActivity extends ListActivity {
 
         ListAdapter listAdapter = new ArrayAdapter<String>(
                 this,
-                android.R.layout.select_dialog_item,
+                android.R.layout.simple_list_item_multiple_choice,
                 packages
         );
 
         setListAdapter(listAdapter);
+        getListView().setChoiceMode(AbsListView.CHOICE_MODE_MULTIPLE);
 
     }
 
-    @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {
-        super.onListItemClick(l, v, position, id);
-        Intent switchIntent = new Intent(this, DiagActivity.class);
-        String pkgName = l.getItemAtPosition(position).toString();
+    public void onStartButtonClick(View view) {
+        ListView list = getListView();
+        SparseBooleanArray checked = list.getCheckedItemPositions();
+        List<String> pkgNames = new ArrayList<>();
+        for (int position = 0; position < list.getCount(); position++) {
+            if (checked != null && checked.get(position)) {
+                pkgNames.add(list.getItemAtPosition(position).toString());
+            }
+        }
 
-        switchIntent.putExtra(DiagActivity.ACTIVITY_EXTRA_PACKAGE_NAME, pkgName);
+        if (pkgNames.isEmpty()) {
+            Toast.makeText(this, "Select diagnostic data.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Intent switchIntent = new Intent(this, DiagActivity.class);
+        switchIntent.putExtra(
+                DiagActivity.ACTIVITY_EXTRA_PACKAGE_NAMES,
+                pkgNames.toArray(new String[pkgNames.size()]));
+        switchIntent.putExtra(
+                DiagActivity.ACTIVITY_EXTRA_CAN,
+                ((CheckBox)findViewById(R.id.can_checkbox)).isChecked());
 
         startActivity(switchIntent);
     }
 
-    public void onLogButtonClick(View view) {
-        try {
-            File file = DiagDataLogger.getLogFile(Environment.getExternalStorageDirectory());
-            Uri fileUri = Uri.fromFile(file);
-
-            Intent sendIntent = new Intent(android.content.Intent.ACTION_SEND);
-            sendIntent.setType("text/plain");
-            sendIntent.putExtra(Intent.EXTRA_SUBJECT, "Log file");
-            sendIntent.putExtra(Intent.EXTRA_TEXT, "The generated log file should be attached.");
-            sendIntent.putExtra(Intent.EXTRA_STREAM, fileUri);
-            sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-
-            startActivity(Intent.createChooser(sendIntent, "Send e-mail"));
-        } catch (IOException ex) {
-            Toast.makeText(
-                    this,
-                    "Failed to share log file: " + ex.toString(),
-                    Toast.LENGTH_SHORT).show();
-        }
+    public void onLogButtonClick(final View view) {
+        view.setEnabled(false);
+
+        // Completing and converting the log takes long for a long session.
+        new AsyncTask<Void, Void, File>() {
+            private IOException error = null;
+
+            @Override
+            protected File doInBackground(Void... params) {
+                try {
+                    return DiagDataLogger.getLogFile();
+                } catch (IOException ex) {
+                    this.error = ex;
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(File file) {
+                view.setEnabled(true);
+                if (file != null) {
+                    shareLogFile(file);
+                } else {
+                    Toast.makeText(
+                            ChoosePackageActivity.this,
+                            "Failed to share log file: " + this.error.toString(),
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+    }
+
+    private void shareLogFile(File file) {
+        Uri fileUri = Uri.fromFile(file);
+
+        Intent sendIntent = new Intent(android.content.Intent.ACTION_SEND);
+        sendIntent.setType("text/plain");
+        sendIntent.putExtra(Intent.EXTRA_SUBJECT, "Log file");
+        sendIntent.putExtra(Intent.EXTRA_TEXT, "The generated log file should be attached.");
+        sendIntent.putExtra(Intent.EXTRA_STREAM, fileUri);
+        sendIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        startActivity(Intent.createChooser(sendIntent, "Send e-mail"));
     }
 
     public void onBackButton(View view) {
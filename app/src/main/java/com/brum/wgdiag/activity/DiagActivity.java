@@ -13,6 +13,7 @@ import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import com.brum.wgdiag.BuildConfig;
 import com.brum.wgdiag.R;
 import com.brum.wgdiag.activity.utils.UIDiagDataHandler;
 import com.brum.wgdiag.activity.utils.ExecutionInterrupter;
@@ -20,38 +21,79 @@ import com.brum.wgdiag.command.Processor;
 import com.brum.wgdiag.command.diag.Field;
 import com.brum.wgdiag.command.diag.Package;
 import com.brum.wgdiag.command.diag.Packages;
+import com.brum.wgdiag.command.diag.impl.CommandPlanner;
 import com.brum.wgdiag.command.diag.impl.CompositeDataHandler;
 import com.brum.wgdiag.logger.LoggingDiagDataHandler;
+import com.brum.wgdiag.metrics.Metrics;
 import com.brum.wgdiag.util.Executor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class DiagActivity extends Activity {
 
     public static final String ACTIVITY_EXTRA_PACKAGE_NAME = "com.brum.diag.package_name";
+    /**
+     * Names of the packages to be executed together, as string array.
+     */
+    public static final String ACTIVITY_EXTRA_PACKAGE_NAMES = "com.brum.diag.package_names";
+    /**
+     * True iff the packages are executed over CAN instead of the K-line, as boolean.
+     */
+    public static final String ACTIVITY_EXTRA_CAN = "com.brum.diag.can";
+    private static final long METRICS_REFRESH_MILLIS = 1000;
+
     private ExecutionInterrupter interrupter = null;
+    private final Handler metricsHandler = new Handler();
+    private TextView metricsOverlay = null;
+
+    private final Runnable metricsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            metricsOverlay.setText(
+                    String.format(Locale.US, "%.2f cycles/s, load %.2f%n",
+                            Processor.getCycleRate(), Processor.getLoad())
+                            + Metrics.format());
+            metricsHandler.postDelayed(this, METRICS_REFRESH_MILLIS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Executor.bind(this);
 
-        String pkgName = (String)this.getIntent().getExtras().get(ACTIVITY_EXTRA_PACKAGE_NAME);
-        Package pkg = null;
+        List<String> pkgNames = new ArrayList<>();
+        String[] names = this.getIntent().getStringArrayExtra(ACTIVITY_EXTRA_PACKAGE_NAMES);
+        if (names != null) {
+            pkgNames.addAll(Arrays.asList(names));
+        } else if (this.getIntent().getStringExtra(ACTIVITY_EXTRA_PACKAGE_NAME) != null) {
+            pkgNames.add(this.getIntent().getStringExtra(ACTIVITY_EXTRA_PACKAGE_NAME));
+        }
 
+        List<Package> packages = new ArrayList<>();
         for (Package p : Packages.PACKAGES) {
-            if (p.getName().equals(pkgName)) {
-                pkg = p;
-                break;
+            if (pkgNames.contains(p.getName())) {
+                packages.add(p);
             }
         }
 
-        if (pkg == null) {
+        if (packages.isEmpty()) {
             finish();
             return;
         }
 
+        // The selected packages share the adapter connection - each request is executed once and
+        // feeds all of them.
+        Package pkg = CommandPlanner.combine(packages);
+        if (this.getIntent().getBooleanExtra(ACTIVITY_EXTRA_CAN, false)) {
+            pkg = Packages.overCan(pkg);
+        }
+
         setContentView(R.layout.diag_activity);
 
         LinearLayout dataContainer = ((LinearLayout)findViewById(R.id.diag_data_container));
@@ -78,6 +120,13 @@ public class DiagActivity extends Activity {
         this.interrupter = interrupter;
 
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        // The metrics overlay is shown only in the debug builds.
+        if (BuildConfig.DEBUG) {
+            this.metricsOverlay = (TextView) findViewById(R.id.metrics_overlay);
+            this.metricsOverlay.setVisibility(View.VISIBLE);
+            this.metricsHandler.post(this.metricsUpdater);
+        }
     }
 
     private TextView addControl(LinearLayout container, String title) {
@@ -107,6 +156,7 @@ public class DiagActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        this.metricsHandler.removeCallbacks(this.metricsUpdater);
         synchronized (this) {
             if (this.interrupter != null) {
                 interrupter.interrupt(false);
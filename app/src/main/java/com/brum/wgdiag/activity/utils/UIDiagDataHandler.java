@@ -1,52 +1,111 @@
 package com.brum.wgdiag.activity.utils;
 
-import android.os.Handler;
-import android.os.Message;
+import android.view.Choreographer;
 import android.widget.TextView;
 
+import com.brum.wgdiag.command.diag.DataFrame;
 import com.brum.wgdiag.command.diag.DataHandler;
+import com.brum.wgdiag.command.diag.Field;
 import com.brum.wgdiag.command.diag.Package;
 
-import java.math.BigDecimal;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Handler for responses send by diagnostic commands.
+ *
+ * The newest value of each key is stored in a slot and the UI is updated at most once per display
+ * frame, so the UI thread cost doesn't depend on how fast the data is being polled. The slots hold
+ * the decoded double values and only the values being displayed are formatted, so the formatting
+ * cost doesn't depend on it either. The text fields, which have no numeric format, are stored as
+ * text.
  */
-public class UIDiagDataHandler extends Handler implements DataHandler {
+public class UIDiagDataHandler implements DataHandler, Choreographer.FrameCallback {
 
-    private final Map<String, TextView> dataViewers;
+    private static final String NOT_AVAILABLE = "NA";
+    // Marks the slots without a new value. A NaN never produced by Double.doubleToLongBits(), which
+    // collapses all NaN values to the canonical one.
+    private static final long NO_VALUE = 0x7ff0000000000001L;
 
+    private final Map<String, Integer> slotIndexes = new HashMap<>();
+    private final TextView[] views;
+    private final String[] applied;
+    // The field of each slot, set before its first value is stored in the slot.
+    private final Field[] fields;
+    private final AtomicLongArray slots;
+    private final AtomicReferenceArray<String> textSlots;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Choreographer choreographer;
+
+    /**
+     * Should be created on the UI thread.
+     */
     public UIDiagDataHandler(Map<String, TextView> dataViewers) {
-        this.dataViewers = Collections.unmodifiableMap(dataViewers);
-    }
+        this.views = new TextView[dataViewers.size()];
+        this.applied = new String[dataViewers.size()];
+        this.fields = new Field[dataViewers.size()];
+        this.slots = new AtomicLongArray(dataViewers.size());
+        this.textSlots = new AtomicReferenceArray<>(dataViewers.size());
 
-    @Override
-    public void handle(String key, String value) {
-        if (!dataViewers.keySet().contains(key)) {
-            return;
+        int index = 0;
+        for (Map.Entry<String, TextView> entry : dataViewers.entrySet()) {
+            this.slotIndexes.put(entry.getKey(), index);
+            this.views[index] = entry.getValue();
+            this.slots.set(index, NO_VALUE);
+            index++;
         }
 
-        Message msg = new Message();
-        msg.getData().putString("key", key);
-        msg.getData().putString("value", value);
-        sendMessage(msg);
+        this.choreographer = Choreographer.getInstance();
     }
 
     @Override
-    public void handle(String key, BigDecimal value) {
-        // Do nothing.
+    public void handle(DataFrame frame) {
+        boolean updated = false;
+        for (int i = 0; i < frame.size(); i++) {
+            Integer slot = this.slotIndexes.get(frame.getKey(i));
+            if (slot == null) {
+                continue;
+            }
+            Field field = frame.getField(i);
+            if (field.getPosition() < 0) {
+                this.textSlots.set(slot, frame.getText(i));
+            } else {
+                this.fields[slot] = field;
+                double value = frame.isComplete() ? frame.getValue(i) : Double.NaN;
+                this.slots.set(slot, Double.doubleToLongBits(value));
+            }
+            updated = true;
+        }
+
+        if (updated && this.scheduled.compareAndSet(false, true)) {
+            this.choreographer.postFrameCallback(this);
+        }
     }
 
+    /**
+     * Apply the changed values. Called on the UI thread once per display frame while there are
+     * pending values.
+     */
     @Override
-    public void handleMessage(Message msg) {
-        String key = msg.getData().get("key").toString();
-        String value = msg.getData().get("value").toString();
+    public void doFrame(long frameTimeNanos) {
+        // Values stored after this point will schedule another frame.
+        this.scheduled.set(false);
 
-        TextView view = dataViewers.get(key);
-        view.setText(value);
-        view.postInvalidate();
+        for (int i = 0; i < this.views.length; i++) {
+            String value = this.textSlots.getAndSet(i, null);
+            long bits = this.slots.getAndSet(i, NO_VALUE);
+            if (bits != NO_VALUE) {
+                double number = Double.longBitsToDouble(bits);
+                value = Double.isNaN(number) ? NOT_AVAILABLE : this.fields[i].format(number);
+            }
+            if (value != null && !value.equals(this.applied[i])) {
+                this.applied[i] = value;
+                this.views[i].setText(value);
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,83 @@
+package com.brum.wgdiag.bluetooth;
+
+import com.brum.wgdiag.metrics.Histogram;
+
+/**
+ * Response timeout of a single request, learned from the observed response latency.
+ *
+ * The latency distribution is tracked over windows of {@link #WINDOW} responses. Once enough
+ * responses are observed the timeout is the {@link #PERCENTILE} percentile of the last window plus
+ * margin. The static command timeout is always the ceiling. Every timeout doubles the learned value
+ * until the next window completes, so a slower ECU doesn't time out repeatedly.
+ *
+ * The learned value never drops below the floor provided by the caller - the time the adapter
+ * itself waits for the ECU. Giving up earlier would write the next request into a busy adapter,
+ * which aborts it with "STOPPED" and loses the new request. The floor thus follows the adapter
+ * timeout negotiated for the session: about 250 ms with the default ATST32, which dominates the
+ * learned value, down to tens of ms once the timeout is set from the measured round-trip time.
+ *
+ * Thread safe.
+ */
+class AdaptiveTimeout {
+    static final int WINDOW = 64;
+    static final int MIN_SAMPLES = 16;
+    static final double PERCENTILE = 99;
+    static final long MARGIN_MILLIS = 20;
+    static final long MIN_TIMEOUT_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private Histogram current = new Histogram();
+    private Histogram previous = new Histogram();
+    private volatile long timeoutMillis = -1;
+
+    /**
+     * @param staticTimeout the static timeout of the command, in milliseconds.
+     * @return the timeout to be used for the next execution, in milliseconds.
+     */
+    long getTimeout(long staticTimeout) {
+        return getTimeout(staticTimeout, 0);
+    }
+
+    /**
+     * @param staticTimeout the static timeout of the command, in milliseconds.
+     * @param minTimeout the floor of the learned timeout, in milliseconds.
+     * @return the timeout to be used for the next execution, in milliseconds.
+     */
+    long getTimeout(long staticTimeout, long minTimeout) {
+        long learned = this.timeoutMillis;
+        return learned < 0
+                ? staticTimeout
+                : Math.min(Math.max(learned, minTimeout), staticTimeout);
+    }
+
+    /**
+     * Record the latency of a complete response.
+     * @param latencyNanos time from sending the command to receiving the prompt.
+     */
+    synchronized void onResponse(long latencyNanos) {
+        this.current.record(latencyNanos);
+        if (this.current.getCount() >= WINDOW) {
+            Histogram completed = this.current;
+            this.current = this.previous;
+            this.current.reset();
+            this.previous = completed;
+            learn(completed);
+        } else if (this.timeoutMillis < 0 && this.current.getCount() >= MIN_SAMPLES) {
+            learn(this.current);
+        }
+    }
+
+    /**
+     * Record that the response was not received in time.
+     */
+    synchronized void onTimeout() {
+        if (this.timeoutMillis >= 0 && this.timeoutMillis < MAX_BACKOFF_MILLIS) {
+            this.timeoutMillis *= 2;
+        }
+    }
+
+    private void learn(Histogram latency) {
+        long percentileMillis = latency.getPercentile(PERCENTILE) / 1000000L;
+        this.timeoutMillis = Math.max(MIN_TIMEOUT_MILLIS, percentileMillis + MARGIN_MILLIS);
+    }
+}
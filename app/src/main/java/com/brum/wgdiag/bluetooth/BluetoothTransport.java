@@ -0,0 +1,66 @@
+package com.brum.wgdiag.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Bluetooth RFCOMM serial transport.
+ */
+class BluetoothTransport implements Transport {
+    //Standard SerialPortService ID
+    private static final UUID SERIAL_PORT_UUID =
+            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final String deviceAddress;
+    private volatile BluetoothSocket socket = null;
+
+    BluetoothTransport(String deviceAddress) {
+        this.deviceAddress = deviceAddress;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        BluetoothDevice device =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(this.deviceAddress);
+        SystemClock.sleep(1);
+        try {
+            this.socket = device.createInsecureRfcommSocketToServiceRecord(SERIAL_PORT_UUID);
+            this.socket.connect();
+        } catch (IOException ex) {
+            try {
+                Method createMethod = device.getClass()
+                        .getMethod("createInsecureRfcommSocket", new Class[] { int.class });
+                this.socket = (BluetoothSocket)createMethod.invoke(device, 1);
+            } catch (Exception reflectionEx) {
+                throw new IOException("Failed to create RFCOMM socket.", reflectionEx);
+            }
+            this.socket.connect();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket = this.socket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.brum.wgdiag.bluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Simulated ELM327 adapter connected to a KWP2000 ECU. Speaks the dialogue used by the diag
+ * packages - the AT set-up commands, the bus init, the security access, the tester present, the
+ * timing parameters and the "21 xx" local identifier reads, which are answered with canned
+ * responses. The local identifiers can be defined dynamically from the canned ones (2C).
+ *
+ * With a CAN protocol (ATSP6..9) and the headers on (ATH1) the responses are send as ISO-TP frames
+ * of the ECU response identifier, padded to 8 bytes - a single frame or a first frame followed by
+ * the consecutive frames.
+ *
+ * The ECU can be made silent, then the bus commands are answered with "NO DATA" once the adapter
+ * timeout (ATST) expires. The commands can be dropped as well, then the adapter doesn't answer
+ * them at all.
+ *
+ * Only produces the response text, the timing is simulated by {@link SimulatedTransport}.
+ *
+ * Not thread safe.
+ */
+public class Elm327Simulator {
+    public static final String PROMPT = ">";
+    private static final int CAN_FRAME_BYTES = 8;
+    private static final String CAN_PADDING = "55";
+    private static final long DEFAULT_TIMEOUT_MILLIS = 200;
+    private static final long TIMEOUT_UNIT_MILLIS = 4;
+
+    private final Map<String, String> responses = new HashMap<>();
+    private boolean echo = true;
+    private boolean spaces = true;
+    private boolean headers = false;
+    // The ECU response CAN identifier, null if the protocol is not CAN.
+    private String canId = null;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile boolean ecuResponding = true;
+    private boolean expectedFramesSupported = true;
+    private volatile int garbledCommands = 0;
+    private volatile int droppedCommands = 0;
+    private volatile String lastCommand = null;
+    private final List<String> receivedCommands = new ArrayList<>();
+    private boolean dynamicLocalIdSupported = true;
+    // Defined local identifier, the hex bytes of the record.
+    private final Map<String, List<String>> dynamicRecords = new HashMap<>();
+
+    public Elm327Simulator() {
+        putResponse("81", "C1 EF 8F");
+        putResponse("27 01", "67 01 12 34");
+        putResponse("27 02 CD 46", "7F 27 35");
+        putResponse("31 25 00", "71 25");
+        putResponse("3E", "7E");
+        putResponse("83 00", "C3 00 00 01 00 14 00");
+        putResponse("83 01", "C3 01");
+        putResponse(
+            "21 12",
+            "61 12 0B 3E 0A DB 08 B7 08 B7 00 00 02 FD 0B A1 02 4A 03 AE 0B BB 01 32 01 2B 00 6F 09 7F 03 A0 00 00");
+        putResponse(
+            "21 20",
+            "61 20 03 5A 03 3C 03 FE 00 01 00 94 00 4A 01 B3 01 6E 01 0C 03 02 02 66 00 84 00 5C 03 A0 03 03");
+        putResponse(
+            "21 22",
+            "61 22 0B 43 0A DD 08 B7 08 B7 00 00 00 00 02 43 03 AD 0B CD 03 B8 02 67 02 E4 02 E4 02 85 08 B7 00 0C");
+        putResponse(
+            "21 26",
+            "61 26 00 00 00 00 00 00 5B 37 7F FF 00 00 2F A0 00 29 00 29 00 29 00 29 00 48 00 23 00 00 0B 41");
+        putResponse(
+            "21 28",
+            "61 28 02 EE 03 2C 02 EE 02 EE 02 EC 02 EE 02 EE 00 00 00 CC FF 3C 00 68 FF FB FF 94 00 00 F6");
+    }
+
+    /**
+     * Set the ECU response for the specified request. Both are hex bytes separated with spaces.
+     */
+    public void putResponse(String request, String response) {
+        this.responses.put(normalize(request), response);
+    }
+
+    /**
+     * Set if the expected frames suffix is accepted, e.g. "21121". Some adapter clones reject it.
+     */
+    public void setExpectedFramesSupported(boolean supported) {
+        this.expectedFramesSupported = supported;
+    }
+
+    /**
+     * Set if the ECU answers the bus commands. A silent ECU is reported by the adapter with
+     * "NO DATA" after {@link #getTimeoutMillis()}.
+     */
+    public void setEcuResponding(boolean responding) {
+        this.ecuResponding = responding;
+    }
+
+    public boolean isEcuResponding() {
+        return this.ecuResponding;
+    }
+
+    /**
+     * @return the time the adapter waits for the ECU response, set by ATST.
+     */
+    public long getTimeoutMillis() {
+        return this.timeoutMillis;
+    }
+
+    /**
+     * Garble the next commands received, as if they were corrupted on the serial line. The adapter
+     * answers them with "?".
+     */
+    public void garbleNextCommands(int count) {
+        this.garbledCommands = count;
+    }
+
+    /**
+     * Drop the next commands received, as if they were lost on the serial line. The adapter doesn't
+     * answer them at all, not even with the prompt.
+     */
+    public void dropNextCommands(int count) {
+        this.droppedCommands = count;
+    }
+
+    /**
+     * @return the command lines received so far, in the order they were received.
+     */
+    public List<String> getReceivedCommands() {
+        synchronized (this.receivedCommands) {
+            return new ArrayList<>(this.receivedCommands);
+        }
+    }
+
+    /**
+     * @return the last command line received, e.g. "21121".
+     */
+    public String getLastCommand() {
+        return this.lastCommand;
+    }
+
+    /**
+     * Set if the local identifiers can be defined dynamically (2C). Some ECUs refuse it.
+     */
+    public void setDynamicLocalIdSupported(boolean supported) {
+        this.dynamicLocalIdSupported = supported;
+    }
+
+    /**
+     * @return true iff the command is executed by the ECU, i.e. it is not an AT command.
+     */
+    public static boolean isBusCommand(String command) {
+        return !normalize(command).startsWith("AT");
+    }
+
+    /**
+     * Process single command line, without the terminating carriage return.
+     * @return the complete adapter output - the echo, the response lines and the prompt.
+     */
+    public String process(String command) {
+        synchronized (this.receivedCommands) {
+            this.receivedCommands.add(command);
+        }
+        this.lastCommand = command;
+        if (this.droppedCommands > 0) {
+            this.droppedCommands--;
+            return "";
+        }
+
+        StringBuilder output = new StringBuilder();
+        if (this.echo) {
+            output.append(command).append('\r');
+        }
+
+        String normalized = normalize(command);
+        String response;
+        if (this.garbledCommands > 0) {
+            this.garbledCommands--;
+            response = "?";
+        } else if (normalized.startsWith("AT")) {
+            response = processAt(normalized.substring(2));
+        } else {
+            if (this.expectedFramesSupported
+                    && normalized.length() % 2 == 1
+                    && normalized.length() > 1) {
+                // Drop the expected frames suffix, all responses are single frame.
+                normalized = normalized.substring(0, normalized.length() - 1);
+            }
+            response = this.ecuResponding ? this.responses.get(normalized) : "NO DATA";
+            if (response == null && normalized.startsWith("2C")) {
+                response = defineLocalId(normalized);
+            } else if (response == null && this.dynamicRecords.containsKey(normalized)) {
+                response = readDynamicLocalId(normalized);
+            } else if (response == null && normalized.startsWith("8303")) {
+                // Any timing parameters are accepted.
+                response = "C3 03";
+            }
+            if (response == null) {
+                response = normalized.matches("[0-9A-F]+") && normalized.length() % 2 == 0
+                        // Negative response - request out of range.
+                        ? "7F " + normalized.substring(0, 2) + " 31"
+                        : "?";
+            }
+            if (this.canId != null
+                    && this.headers
+                    && !response.equals("?")
+                    && !response.equals("NO DATA")) {
+                response = toCanFrames(response);
+            }
+            if (!this.spaces) {
+                response = response.replace(" ", "");
+            }
+        }
+
+        output.append(response).append("\r\r").append(PROMPT);
+        return output.toString();
+    }
+
+    /**
+     * Define a local identifier by local identifier ("2C F0 01 pos len lid lidPos") or clear it
+     * ("2C F0 04").
+     */
+    private String defineLocalId(String request) {
+        if (!this.dynamicLocalIdSupported) {
+            return "7F 2C 11";
+        }
+        if (request.length() < 6) {
+            return "7F 2C 12";
+        }
+
+        String localId = request.substring(2, 4);
+        String read = "21" + localId;
+        String mode = request.substring(4, 6);
+        if (mode.equals("04") && request.length() == 6) {
+            if (this.dynamicRecords.remove(read) == null) {
+                return "7F 2C 31";
+            }
+            return "6C " + localId;
+        }
+        if (!mode.equals("01") || request.length() != 14) {
+            return "7F 2C 12";
+        }
+
+        int position = Integer.parseInt(request.substring(6, 8), 16);
+        int length = Integer.parseInt(request.substring(8, 10), 16);
+        String source = this.responses.get("21" + request.substring(10, 12));
+        int sourcePosition = Integer.parseInt(request.substring(12, 14), 16);
+        if (source == null) {
+            return "7F 2C 31";
+        }
+        // The source record starts after the service id and the local identifier.
+        String[] sourceBytes = source.split(" ");
+        List<String> record = this.dynamicRecords.get(read);
+        if (record == null) {
+            record = new ArrayList<>();
+        }
+        if (position != record.size() + 1 || sourcePosition + length > sourceBytes.length - 1) {
+            return "7F 2C 31";
+        }
+        for (int i = 0; i < length; i++) {
+            record.add(sourceBytes[1 + sourcePosition + i]);
+        }
+        this.dynamicRecords.put(read, record);
+        return "6C " + localId;
+    }
+
+    /**
+     * Split the response into ISO-TP frames, one per line.
+     */
+    private String toCanFrames(String response) {
+        String[] bytes = response.split(" ");
+        StringBuilder frames = new StringBuilder();
+        if (bytes.length < CAN_FRAME_BYTES) {
+            appendCanFrame(frames, String.format(Locale.US, "%02X", bytes.length), bytes, 0, 1);
+            return frames.toString();
+        }
+
+        int position = appendCanFrame(
+                frames, String.format(Locale.US, "1%01X %02X", bytes.length >> 8, bytes.length & 0xFF),
+                bytes, 0, 2);
+        for (int sequence = 1; position < bytes.length; sequence = (sequence + 1) & 0xF) {
+            frames.append('\r');
+            position = appendCanFrame(
+                    frames, String.format(Locale.US, "2%01X", sequence), bytes, position, 1);
+        }
+        return frames.toString();
+    }
+
+    /**
+     * Append a frame with the specified protocol control information and as many bytes as fit.
+     * @return the position of the next byte to be send.
+     */
+    private int appendCanFrame(
+            StringBuilder frames, String pci, String[] bytes, int position, int pciBytes) {
+        frames.append(this.canId).append(' ').append(pci);
+        for (int i = pciBytes; i < CAN_FRAME_BYTES; i++) {
+            frames.append(' ').append(position < bytes.length ? bytes[position++] : CAN_PADDING);
+        }
+        return position;
+    }
+
+    private String readDynamicLocalId(String request) {
+        StringBuilder response = new StringBuilder("61 ").append(request.substring(2, 4));
+        for (String b : this.dynamicRecords.get(request)) {
+            response.append(' ').append(b);
+        }
+        return response.toString();
+    }
+
+    private String processAt(String command) {
+        if (command.equals("Z")) {
+            this.echo = true;
+            this.spaces = true;
+            this.headers = false;
+            this.canId = null;
+            this.timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+            return "\r\rELM327 v1.5";
+        } else if (command.equals("E0") || command.equals("E1")) {
+            this.echo = command.equals("E1");
+        } else if (command.equals("S0") || command.equals("S1")) {
+            this.spaces = command.equals("S1");
+        } else if (command.matches("ST[0-9A-F]{2}")) {
+            int units = Integer.parseInt(command.substring(2), 16);
+            this.timeoutMillis = units > 0 ? units * TIMEOUT_UNIT_MILLIS : DEFAULT_TIMEOUT_MILLIS;
+        } else if (command.equals("H0") || command.equals("H1")) {
+            this.headers = command.equals("H1");
+        } else if (command.startsWith("SP") || command.startsWith("TP")) {
+            String protocol = command.substring(2);
+            if (protocol.startsWith("A")) {
+                protocol = protocol.substring(1);
+            }
+            if (protocol.equals("6") || protocol.equals("8")) {
+                this.canId = "7E8";
+            } else if (protocol.equals("7") || protocol.equals("9")) {
+                this.canId = "18DAF110";
+            } else {
+                this.canId = null;
+            }
+        } else if (command.equals("FI")) {
+            return "BUS INIT: OK";
+        } else if (command.isEmpty()) {
+            return "?";
+        }
+        return "OK";
+    }
+
+    private static String normalize(String command) {
+        return command.replace(" ", "").trim().toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,34 @@
+package com.brum.wgdiag.bluetooth;
+
+/**
+ * Streaming framer of the serial adapter responses. The data read from the serial input stream is
+ * fed as it arrives, and the response is complete once the '>' prompt is received.
+ */
+interface Framer {
+    /**
+     * Prepare the framer for the response of the specified command. Any collected data is purged.
+     * @param command the command that was send. Used to drop the command echo. Can be null.
+     */
+    void reset(String command);
+
+    /**
+     * Purge all collected data.
+     */
+    void clear();
+
+    /**
+     * Feed data read from the serial input stream.
+     * @return true iff the prompt was received and the response is complete.
+     */
+    boolean feed(byte[] data, int offset, int length);
+
+    /**
+     * Get the response collected so far.
+     */
+    String getResponse();
+
+    /**
+     * @return true iff data of the response was lost, e.g. a frame of a multi-frame response.
+     */
+    boolean isTruncated();
+}
@@ -0,0 +1,219 @@
+package com.brum.wgdiag.bluetooth;
+
+/**
+ * Streaming framer for the ISO 15765-2 (ISO-TP) responses received over CAN.
+ *
+ * The adapter prints each received CAN frame on its own line, starting with the CAN identifier
+ * (ATH1), e.g. the first frame "7E8 10 22 61 12 0B 3E 0A DB" followed by the consecutive frames
+ * "7E8 21 08 B7 08 B7 00 00 02". Each line is decoded as soon as it is terminated: the protocol
+ * control information is checked and the payload digits are appended directly to the response
+ * buffer, without the padding. So the response is the reassembled payload in compact hex, e.g.
+ * "61120B3E0ADB08B7...", ready to be decoded by the diag commands.
+ *
+ * The lines that are not CAN frames, like "NO DATA" or "OK", are collected as text and are the
+ * response if no frame is received.
+ *
+ * Not thread safe.
+ */
+class IsoTpFramer implements Framer {
+    private static final byte PROMPT = '>';
+    private static final int MAX_PAYLOAD = 0xFFF;
+
+    private static final int SINGLE_FRAME = 0;
+    private static final int FIRST_FRAME = 1;
+    private static final int CONSECUTIVE_FRAME = 2;
+
+    private final int idDigits;
+    private final char[] line;
+    private final char[] payload = new char[MAX_PAYLOAD * 2];
+    private final char[] text;
+    private int lineLength = 0;
+    private int payloadDigits = 0;
+    private int textLength = 0;
+
+    // Expected payload length in bytes, -1 until the first frame is received.
+    private int expectedLength = -1;
+    private int nextSequence = 0;
+    private boolean truncated = false;
+    private boolean complete = false;
+    private String echo = null;
+
+    /**
+     * @param capacity the capacity of a line and of the text response.
+     * @param idDigits number of the CAN identifier hex digits - 3 for 11 bit identifiers and 8 for
+     *                 29 bit ones.
+     */
+    IsoTpFramer(int capacity, int idDigits) {
+        this.idDigits = idDigits;
+        this.line = new char[capacity];
+        this.text = new char[capacity];
+    }
+
+    @Override
+    public void reset(String command) {
+        clear();
+        this.echo = (command == null || command.isEmpty()) ? null : command;
+    }
+
+    @Override
+    public void clear() {
+        this.lineLength = 0;
+        this.payloadDigits = 0;
+        this.textLength = 0;
+        this.expectedLength = -1;
+        this.nextSequence = 0;
+        this.truncated = false;
+        this.complete = false;
+        this.echo = null;
+    }
+
+    @Override
+    public boolean feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length && !this.complete; i++) {
+            byte b = data[i];
+            if (b == '\r' || b == '\n' || b == PROMPT) {
+                onLine();
+                this.complete = b == PROMPT;
+            } else if (this.lineLength < this.line.length) {
+                this.line[this.lineLength++] = (char) (b & 0xFF);
+            }
+        }
+        return this.complete;
+    }
+
+    @Override
+    public String getResponse() {
+        if (this.expectedLength < 0) {
+            return new String(this.text, 0, this.textLength);
+        }
+        return new String(this.payload, 0, this.payloadDigits);
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return this.truncated
+                || (this.expectedLength >= 0 && this.payloadDigits < this.expectedLength * 2);
+    }
+
+    private void onLine() {
+        int length = this.lineLength;
+        this.lineLength = 0;
+        if (length == 0) {
+            return;
+        }
+
+        if (this.echo != null) {
+            String echo = this.echo;
+            this.echo = null;
+            if (matches(echo, length)) {
+                return;
+            }
+        }
+
+        int digits = compactHex(length);
+        if (digits >= this.idDigits + 2) {
+            onFrame(digits);
+        } else {
+            // A short hex line is compacted already.
+            length = digits >= 0 ? digits : length;
+            for (int i = 0; i < length && this.textLength < this.text.length; i++) {
+                this.text[this.textLength++] = this.line[i];
+            }
+        }
+    }
+
+    private void onFrame(int length) {
+        int position = this.idDigits;
+        int type = digit(position++);
+        int dataLength;
+        switch (type) {
+            case SINGLE_FRAME:
+                dataLength = digit(position++);
+                startPayload(dataLength);
+                break;
+            case FIRST_FRAME:
+                if (length < position + 3) {
+                    this.truncated = true;
+                    return;
+                }
+                dataLength = (digit(position) << 8) | (digit(position + 1) << 4) | digit(position + 2);
+                position += 3;
+                startPayload(dataLength);
+                this.nextSequence = 1;
+                break;
+            case CONSECUTIVE_FRAME:
+                int sequence = digit(position++);
+                if (this.expectedLength < 0 || sequence != this.nextSequence) {
+                    // A frame was lost, the rest of the payload can't be placed.
+                    this.truncated = true;
+                    return;
+                }
+                this.nextSequence = (sequence + 1) & 0xF;
+                break;
+            default:
+                // Flow control frames carry no payload.
+                return;
+        }
+
+        // Copy whole bytes up to the expected length, the rest of the frame is padding.
+        int limit = Math.min(this.expectedLength * 2, this.payload.length);
+        for (int i = position; i + 1 < length && this.payloadDigits < limit; i += 2) {
+            this.payload[this.payloadDigits++] = this.line[i];
+            this.payload[this.payloadDigits++] = this.line[i + 1];
+        }
+    }
+
+    private void startPayload(int length) {
+        if (this.expectedLength >= 0) {
+            // Another response starts before the previous is complete.
+            this.truncated |= this.payloadDigits < this.expectedLength * 2;
+        }
+        this.expectedLength = length;
+        this.payloadDigits = 0;
+    }
+
+    private boolean matches(String echo, int length) {
+        int j = 0;
+        for (int i = 0; i < echo.length(); i++) {
+            char c = echo.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            while (j < length && this.line[j] == ' ') {
+                j++;
+            }
+            if (j == length || this.line[j++] != c) {
+                return false;
+            }
+        }
+        while (j < length && this.line[j] == ' ') {
+            j++;
+        }
+        return j == length;
+    }
+
+    /**
+     * Remove the spaces of the line in place if it contains only hex digits, so the frame digits
+     * can be addressed by position whether the adapter prints the spaces or not (ATS0/ATS1).
+     * @return the number of the hex digits or -1 if the line is not hex, e.g. "NO DATA".
+     */
+    private int compactHex(int length) {
+        for (int i = 0; i < length; i++) {
+            char c = this.line[i];
+            if (c != ' ' && Character.digit(c, 16) < 0) {
+                return -1;
+            }
+        }
+        int digits = 0;
+        for (int i = 0; i < length; i++) {
+            if (this.line[i] != ' ') {
+                this.line[digits++] = this.line[i];
+            }
+        }
+        return digits;
+    }
+
+    private int digit(int position) {
+        return Character.digit(this.line[position], 16);
+    }
+}
@@ -0,0 +1,87 @@
+package com.brum.wgdiag.bluetooth;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response listener that carries the response of a single command, see
+ * {@link Service#submit(com.brum.wgdiag.command.Command)}. The thread waiting for the response
+ * blocks in {@link #await()} and is woken as soon as the response, the timeout or the error is
+ * delivered.
+ */
+public class PendingResponse implements ResponseListenerEx {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile String response = null;
+    private volatile boolean complete = false;
+    private volatile Exception error = null;
+
+    @Override
+    public void onResponse(String response) {
+        complete(response, true);
+    }
+
+    @Override
+    public void onIncompleteResponse(String response) {
+        complete(response, false);
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        if (this.done.getCount() > 0) {
+            this.error = ex;
+        }
+        complete("", false);
+    }
+
+    private void complete(String response, boolean complete) {
+        if (this.done.getCount() == 0) {
+            // Only the first response is carried.
+            return;
+        }
+        this.response = response;
+        this.complete = complete;
+        this.done.countDown();
+    }
+
+    /**
+     * Block until the response is received.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public void await() throws InterruptedException {
+        this.done.await();
+    }
+
+    /**
+     * Block until the response is received or the timeout expires.
+     * @return true iff the response was received.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return this.done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isDone() {
+        return this.done.getCount() == 0;
+    }
+
+    /**
+     * @return true iff the response was terminated by the prompt. False on timeout or error.
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * @return the error the command has failed with, or null.
+     */
+    public Exception getError() {
+        return this.error;
+    }
+
+    /**
+     * @return the response, or null if it is not received yet. Empty if the command has failed.
+     */
+    public String getResponse() {
+        return this.response;
+    }
+}
@@ -0,0 +1,156 @@
+package com.brum.wgdiag.bluetooth;
+
+/**
+ * Streaming framer for the single line serial adapter responses.
+ *
+ * The data read from the serial input stream is fed as it arrives and is stored in a fixed
+ * capacity byte ring buffer. CR/LF, the command echo and "STOPPED" are dropped in a single pass and
+ * the response is complete once the '>' prompt is received. No memory is allocated while feeding
+ * data, the only allocation is the response string itself. If the response exceeds the capacity,
+ * the oldest data is dropped and the response is reported as truncated.
+ *
+ * Not thread safe.
+ */
+class ResponseFramer implements Framer {
+    private static final byte PROMPT = '>';
+    private static final String STOPPED = "STOPPED";
+
+    private final byte[] ring;
+    private final char[] chars;
+    private int head = 0;
+    private int size = 0;
+
+    private String echo = null;
+    private int echoMatched = 0;
+    private int stoppedMatched = 0;
+    private boolean truncated = false;
+    private boolean complete = false;
+
+    ResponseFramer(int capacity) {
+        this.ring = new byte[capacity];
+        this.chars = new char[capacity];
+    }
+
+    @Override
+    public void reset(String command) {
+        clear();
+        this.echo = (command == null || command.isEmpty()) ? null : command;
+    }
+
+    @Override
+    public void clear() {
+        this.head = 0;
+        this.size = 0;
+        this.echo = null;
+        this.echoMatched = 0;
+        this.stoppedMatched = 0;
+        this.truncated = false;
+        this.complete = false;
+    }
+
+    /**
+     * Feed data read from the serial input stream. The data after the prompt is ignored. SerialWorker
+     * is working with only one command at time, so it can be purged without side effects.
+     * @return true iff the prompt was received and the response is complete.
+     */
+    @Override
+    public boolean feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length && !this.complete; i++) {
+            byte b = data[i];
+            if (b == '\r' || b == '\n') {
+                continue;
+            }
+
+            if (b == PROMPT) {
+                this.complete = true;
+            } else if (this.echo != null) {
+                acceptEcho(b);
+            } else {
+                acceptData(b);
+            }
+        }
+        return this.complete;
+    }
+
+    /**
+     * Get the data collected so far, including any partially matched echo or "STOPPED".
+     */
+    @Override
+    public String getResponse() {
+        int length = 0;
+        if (this.echo != null) {
+            for (int i = 0; i < this.echoMatched; i++) {
+                this.chars[length++] = this.echo.charAt(i);
+            }
+        }
+        for (int i = 0; i < this.size && length < this.chars.length; i++) {
+            this.chars[length++] = (char) (this.ring[(this.head + i) % this.ring.length] & 0xFF);
+        }
+        for (int i = 0; i < this.stoppedMatched && length < this.chars.length; i++) {
+            this.chars[length++] = STOPPED.charAt(i);
+        }
+        return new String(this.chars, 0, length);
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return this.truncated;
+    }
+
+    private void acceptEcho(byte b) {
+        // Some adapters have echo enabled by default and always contain the command in front of
+        // the real response. Drop it while it matches.
+        if (b == this.echo.charAt(this.echoMatched)) {
+            this.echoMatched++;
+            if (this.echoMatched == this.echo.length()) {
+                this.echo = null;
+                this.echoMatched = 0;
+            }
+            return;
+        }
+
+        String mismatched = this.echo;
+        int matched = this.echoMatched;
+        this.echo = null;
+        this.echoMatched = 0;
+        for (int i = 0; i < matched; i++) {
+            acceptData((byte) mismatched.charAt(i));
+        }
+        acceptData(b);
+    }
+
+    private void acceptData(byte b) {
+        // Depending on what the device is doing it may respond with "STOPPED" indicating that an
+        // action is interrupted. This doesn't bring any useful information for our use case. So -
+        // ignore it.
+        if (b == STOPPED.charAt(this.stoppedMatched)) {
+            this.stoppedMatched++;
+            if (this.stoppedMatched == STOPPED.length()) {
+                this.stoppedMatched = 0;
+            }
+            return;
+        }
+
+        int matched = this.stoppedMatched;
+        this.stoppedMatched = 0;
+        for (int i = 0; i < matched; i++) {
+            store((byte) STOPPED.charAt(i));
+        }
+        if (b == STOPPED.charAt(0)) {
+            this.stoppedMatched = 1;
+        } else {
+            store(b);
+        }
+    }
+
+    private void store(byte b) {
+        if (this.size == this.ring.length) {
+            // Overflow - keep the most recent data.
+            this.head = (this.head + 1) % this.ring.length;
+            this.size--;
+            this.truncated = true;
+        }
+        this.ring[(this.head + this.size) % this.ring.length] = b;
+        this.size++;
+    }
+}
@@ -1,243 +1,706 @@
 package com.brum.wgdiag.bluetooth;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.os.SystemClock;
-import android.util.Log;
-
+import com.brum.wgdiag.command.impl.Utils;
+import com.brum.wgdiag.metrics.MetricSet;
+import com.brum.wgdiag.metrics.Metrics;
+import com.brum.wgdiag.util.Clock;
+import com.brum.wgdiag.util.DebugLog;
 import com.brum.wgdiag.util.Executor;
+import com.brum.wgdiag.util.Task;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.UUID;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Serial worker. Takes care for async bluetooth serial interface communication.
+ * Serial worker. Takes care for async serial interface communication over the provided
+ * {@link Transport}.
+ *
+ * Each command is send as a {@link Request} carrying its own listener, so the response is
+ * delivered only to the request it belongs to. Late responses of the timed out requests are
+ * discarded by their response headers, see {@link #isStale(String, String, Iterable)}.
+ *
+ * The responses are framed according to the protocol the adapter is set to by the commands send
+ * through the worker: with a CAN protocol and the headers on the ISO-TP frames are reassembled by
+ * {@link IsoTpFramer}, otherwise the single line responses are collected by
+ * {@link ResponseFramer}.
  */
-class SerialWorker implements Runnable {
-    private final String deviceAddress;
-    private ResponseListenerEx responseListener = null;
-
-    private BluetoothDevice device = null;
-    private BluetoothSocket socket = null;
-    private OutputStream output = null;
+class SerialWorker implements Task {
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final int RESPONSE_BUFFER_SIZE = 1024;
+    private static final long RECONNECT_DELAY_MILLIS = 100;
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+    private static final String NEGATIVE_RESPONSE = "7F";
+    private static final String UNKNOWN_COMMAND = "?";
+    private static final int MAX_EXPECTED_FRAMES = 0xF;
+    // Number of the most recent timed out requests whose late responses are discarded.
+    private static final int MAX_TIMED_OUT_HEADERS = 4;
+    // Number of the consecutive suffix rejections after which the suffix is not used anymore.
+    private static final int MAX_SUFFIX_REJECTIONS = 3;
+    private static final int STANDARD_CAN_ID_DIGITS = 3;
+    private static final int EXTENDED_CAN_ID_DIGITS = 8;
+    // The adapter waits up to ATST x 4 ms for the ECU, 200 ms by default (ATST32).
+    private static final long DEFAULT_ADAPTER_TIMEOUT_MILLIS = 200;
+    private static final long ADAPTER_TIMEOUT_UNIT_MILLIS = 4;
+    // Time for the adapter output to arrive after its own timeout expires.
+    private static final long ADAPTER_TIMEOUT_MARGIN_MILLIS = 50;
+
+    private final Transport transport;
+    private final Object lock = new Object();
+    private final Framer lineFramer = new ResponseFramer(RESPONSE_BUFFER_SIZE);
+    // The framer of the current protocol, guarded by the lock.
+    private Framer framer = lineFramer;
+    private final ConcurrentMap<String, AdaptiveTimeout> timeouts = new ConcurrentHashMap<>();
+
+    // Set while holding the lock, the waiters are notified once the connection is established.
+    private volatile OutputStream output = null;
     private InputStream input = null;
 
-    private boolean stopWorker = false;
-    private boolean restart = false;
-    private boolean running = false;
-    private Long nextTimeout = 0L;
-    private String currentCommand = null;
+    private volatile boolean stopWorker = false;
+    private volatile boolean restart = false;
+    private volatile boolean running = false;
+    // The request currently executing, guarded by the lock.
+    private Request currentRequest = null;
+    // Expected response headers of the timed out requests still waiting for their late response,
+    // guarded by the lock.
+    private final Deque<String> timedOutHeaders = new ArrayDeque<>();
+    private boolean connectedBefore = false;
+    // Cleared once the adapter keeps rejecting the expected frames suffix, see #getLine(Request).
+    private volatile boolean expectedFramesSupported = true;
+    // Consecutive requests rejected with the suffix and answered without it, guarded by the lock.
+    private int suffixRejections = 0;
+    // Adapter protocol state, tracked from the commands send and guarded by the lock. The CAN id
+    // digits are 0 if the protocol is not CAN.
+    private int canIdDigits = 0;
+    private boolean headers = false;
+    // The adapter timeout set by ATST, guarded by the lock.
+    private long adapterTimeoutMillis = DEFAULT_ADAPTER_TIMEOUT_MILLIS;
 
-    SerialWorker(String deviceAddress) {
-        this.deviceAddress = deviceAddress;
+    /**
+     * Command send to the adapter together with the listener of its response.
+     */
+    private static class Request {
+        final String command;
+        // The command as written to the adapter, without the spaces.
+        final String wire;
+        final String responseHeader;
+        final int expectedFrames;
+        final ResponseListenerEx listener;
+        final MetricSet metrics;
+        final AdaptiveTimeout timeout;
+        long sendNanos = 0;
+        boolean firstByteReceived = false;
+        // True iff the expected frames suffix was send with the command.
+        boolean counted = false;
+        // True iff the command was resend without the suffix, after it was rejected with it.
+        boolean resent = false;
+
+        Request(String command,
+                String responseHeader,
+                int expectedFrames,
+                ResponseListenerEx listener,
+                MetricSet metrics,
+                AdaptiveTimeout timeout) {
+            this.command = command;
+            this.wire = Utils.compact(command);
+            this.responseHeader = responseHeader;
+            this.expectedFrames = expectedFrames;
+            this.listener = listener;
+            this.metrics = metrics;
+            this.timeout = timeout;
+        }
     }
 
-    void stop() {
+    SerialWorker(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Request the worker to stop without waiting for it. The worker thread releases the connection
+     * and fails the current request on its way out, see {@link #run()}. Called on the UI thread
+     * when the runtime is shut down, so it must not block.
+     */
+    @Override
+    public void cancel() {
         this.stopWorker = true;
-        while (this.running) {
-            SystemClock.sleep(5);
+        // Closing the transport unblocks the reader thread, notifying the lock wakes it up if it is
+        // waiting to reconnect.
+        closeTransport();
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the worker and wait until it has stopped, at most {@link #STOP_TIMEOUT_MILLIS}.
+     */
+    void stop() {
+        cancel();
+        long deadline = Clock.elapsedMillis() + STOP_TIMEOUT_MILLIS;
+        synchronized (this.lock) {
+            while (this.running) {
+                long remaining = deadline - Clock.elapsedMillis();
+                if (remaining <= 0) {
+                    DebugLog.w(this.getClass().getSimpleName(), "Worker didn't stop in time.");
+                    break;
+                }
+                try {
+                    this.lock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
         }
-        cleanUp();
-        respond(new IOException("Stopping bluetooth serial worker..."));
     }
 
     void restart() {
         this.restart = true;
+        // The reader thread is blocked on the input stream. Closing the transport unblocks it and
+        // the connection is re-initialized on its next iteration.
+        closeTransport();
     }
 
-    private void cleanUp() {
-        if (this.socket != null) {
-            try {
-                this.socket.close();
-            } catch (IOException ex) {
-                Log.d(this.getClass().getSimpleName(), "Got ignored exception", ex);
-            } finally {
-                this.socket = null;
-            }
+    private void closeTransport() {
+        try {
+            this.transport.close();
+        } catch (IOException ex) {
+            DebugLog.d(this.getClass().getSimpleName(), "Got ignored exception", ex);
         }
+    }
+
+    private void cleanUp() {
+        closeTransport();
 
         if (this.input != null) {
             try {
                 this.input.close();
             } catch (IOException ex) {
-                Log.d(this.getClass().getSimpleName(), "Got ignored exception", ex);
+                DebugLog.d(this.getClass().getSimpleName(), "Got ignored exception", ex);
             } finally {
                 this.input = null;
             }
         }
 
-        if (this.output != null) {
+        OutputStream output;
+        synchronized (this.lock) {
+            output = this.output;
+            this.output = null;
+            // Nothing more is received for the requests send over the closed connection.
+            this.timedOutHeaders.clear();
+        }
+        if (output != null) {
             try {
-                this.output.close();
+                output.close();
             } catch (IOException ex) {
-                Log.d(this.getClass().getSimpleName(), "Got ignored exception", ex);
-            } finally {
-                this.output = null;
+                DebugLog.d(this.getClass().getSimpleName(), "Got ignored exception", ex);
             }
         }
         this.restart = false;
     }
 
     /**
-     * Write the provided command over the bluetooth serial output stream.
+     * Write the provided command over the serial output stream. The response is delivered to the
+     * provided listener.
      *
-     * The command is written in non-blocking manner in another thread.
+     * The command is written in non-blocking manner in the IO lane of the {@link Executor}, so the
+     * commands are send in the order they are submitted.
      *
-     * If there is a command that is being executed currently - this command will be blocked until
-     * that command is completed/timed out.
+     * If there is a command that is being executed currently or the connection is not established
+     * yet - this command waits on the lock until that command is completed/timed out or the
+     * connection is established.
      * @param command the command to be written.
-     * @param timeout the timeout in milliseconds for the command to be executed.
+     * @param responseHeader the expected response header, null if any response is accepted.
+     * @param expectedFrames the number of the expected response frames, 0 if unknown.
+     * @param listener the listener of the response.
+     * @param timeout the timeout in milliseconds for the command to be executed. The response
+     *                timeout is learned from the previous executions of the command and this
+     *                timeout is its ceiling, see {@link AdaptiveTimeout}.
      */
-    void sendCommand(final String command, final Long timeout) {
-        Executor.execute(new Runnable() {
+    void sendCommand(final String command,
+                     final String responseHeader,
+                     final int expectedFrames,
+                     final long timeout,
+                     final ResponseListenerEx listener) {
+        final Request request = new Request(
+                command,
+                responseHeader,
+                expectedFrames,
+                listener,
+                Metrics.getCommandMetrics(command),
+                getAdaptiveTimeout(command));
+
+        Executor.executeIo(new Runnable() {
             @Override
             public void run() {
-                long sendCommandTimeout = timeout;
-                while (SerialWorker.this.output == null && sendCommandTimeout > 0) {
-                    SystemClock.sleep(5);
-                    sendCommandTimeout -= 5;
-                }
-
-                while (SerialWorker.this.currentCommand != null && sendCommandTimeout > 0) {
-                    SystemClock.sleep(5);
-                    sendCommandTimeout -= 5;
-                }
+                final long deadline = Clock.elapsedMillis() + timeout;
+                final OutputStream output;
+                final String line;
+                final long minTimeout;
+                synchronized (SerialWorker.this.lock) {
+                    boolean ready = awaitIdle(deadline);
+                    SerialWorker.this.currentRequest = request;
+                    if (!ready) {
+                        // We should not be getting here. If we do - there is no way currently to
+                        // handle this - so just respond with an error.
+                        respond(new RuntimeException("Failed to send command..."));
+                        return;
+                    }
 
-                if (sendCommandTimeout <= 0) {
-                    // We should not be getting here. If we do - there is no way currently to handle
-                    // this - so just throw an exception.
-                    SerialWorker.this.currentCommand = command;
-                    respond(new RuntimeException("Failed to send command..."));
-                    return;
+                    output = SerialWorker.this.output;
+                    updateAdapterState(request.wire);
+                    // The adapter answers its own commands right away, only the requests sent
+                    // to the ECU wait up to the adapter timeout currently set.
+                    minTimeout = isAdapterCommand(request.wire)
+                            ? 0
+                            : SerialWorker.this.adapterTimeoutMillis + ADAPTER_TIMEOUT_MARGIN_MILLIS;
+                    line = getLine(request);
+                    SerialWorker.this.framer.reset(line);
+                    request.sendNanos = System.nanoTime();
                 }
 
                 try {
-                    SerialWorker.this.currentCommand = command;
-                    SerialWorker.this.output.write(command.getBytes());
-                    SerialWorker.this.output.write("\n\r".getBytes());
-                    SerialWorker.this.output.flush();
+                    writeLine(output, line);
                 } catch (IOException ex) {
                     respond(ex);
+                    return;
                 }
-                SerialWorker.this.nextTimeout = SystemClock.elapsedRealtime() + timeout;
+
+                awaitResponse(request, request.timeout.getTimeout(timeout, minTimeout));
             }
         });
     }
 
-    void setResponseListenerEx(ResponseListenerEx listener) {
-        long timeout = 10000;
-        while (this.currentCommand != null && timeout > 0) {
-            SystemClock.sleep(5);
-            timeout -= 5;
+    /**
+     * Get the line to be written for the request. The ELM327 keeps listening for more ECU frames
+     * until its timeout expires, unless the number of the expected frames is appended to the
+     * command as single hex digit, e.g. "21121". Some adapter clones reject this with "?", then
+     * the command is resend without it. The suffix is not used anymore only if this happens for
+     * {@link #MAX_SUFFIX_REJECTIONS} consecutive requests, because a garbled line is rejected
+     * with "?" as well, see {@link #onData(byte[], int)}.
+     *
+     * The suffix is not used with the ISO-TP framing - the adapter counts the CAN frames, which
+     * include the flow control and the consecutive frames, so a multi-frame response would be cut.
+     */
+    private String getLine(Request request) {
+        request.counted = this.expectedFramesSupported
+                && this.framer == this.lineFramer
+                && request.expectedFrames > 0
+                && request.expectedFrames <= MAX_EXPECTED_FRAMES
+                && isHexCommand(request.wire);
+        return request.counted
+                ? request.wire + Character.toUpperCase(Character.forDigit(request.expectedFrames, 16))
+                : request.wire;
+    }
+
+    /**
+     * @return true iff the command is handled by the adapter itself, not sent to the ECU.
+     */
+    private static boolean isAdapterCommand(String command) {
+        return command.toUpperCase(Locale.US).startsWith("AT");
+    }
+
+    /**
+     * Track the timeout, the protocol and the headers setting of the adapter and select the framer
+     * of its responses. Must be called while holding the lock, before the command is written.
+     * @param command the command as written to the adapter, e.g. "ATSP6".
+     */
+    private void updateAdapterState(String command) {
+        String upper = command.toUpperCase(Locale.US);
+        if (upper.startsWith("ATST")) {
+            long timeout = getAdapterTimeoutMillis(upper.substring(4));
+            if (timeout > 0) {
+                this.adapterTimeoutMillis = timeout;
+            }
+            return;
         }
 
-        if (timeout == 0) {
-            throw new RuntimeException("Failed to complete command");
+        if (upper.equals("ATZ") || upper.equals("ATD") || upper.equals("ATWS")) {
+            // Reset to the defaults - automatic protocol search, headers off and 200 ms timeout.
+            this.canIdDigits = 0;
+            this.headers = false;
+            this.adapterTimeoutMillis = DEFAULT_ADAPTER_TIMEOUT_MILLIS;
+        } else if (upper.equals("ATH0") || upper.equals("ATH1")) {
+            this.headers = upper.equals("ATH1");
+        } else if (upper.startsWith("ATSP") || upper.startsWith("ATTP")) {
+            String protocol = upper.substring(4);
+            if (protocol.startsWith("A")) {
+                // Automatic search starting with the specified protocol.
+                protocol = protocol.substring(1);
+            }
+            this.canIdDigits = getCanIdDigits(protocol);
+        } else {
+            return;
         }
 
-        this.responseListener = listener;
+        this.framer = this.canIdDigits > 0 && this.headers
+                ? new IsoTpFramer(RESPONSE_BUFFER_SIZE, this.canIdDigits)
+                : this.lineFramer;
+    }
+
+    /**
+     * @return the adapter timeout set by the ATST argument, e.g. 48 ms for "0C" and the default
+     *         for "00", or -1 if the argument is rejected by the adapter.
+     */
+    private static long getAdapterTimeoutMillis(String argument) {
+        int units;
+        try {
+            units = Integer.parseInt(argument, 16);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+        if (units < 0 || units > 0xFF) {
+            return -1;
+        }
+        return units > 0 ? units * ADAPTER_TIMEOUT_UNIT_MILLIS : DEFAULT_ADAPTER_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @return the number of the CAN identifier hex digits of the ELM327 protocol number, or 0 if
+     *         it is not a CAN protocol. Protocols 6 and 8 use 11 bit identifiers, 7 and 9 - 29 bit.
+     */
+    private static int getCanIdDigits(String protocol) {
+        switch (protocol) {
+            case "6":
+            case "8":
+                return STANDARD_CAN_ID_DIGITS;
+            case "7":
+            case "9":
+                return EXTENDED_CAN_ID_DIGITS;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isHexCommand(String command) {
+        if (command.isEmpty() || command.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if (Character.digit(command.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeLine(OutputStream output, String line) throws IOException {
+        // The adapter executes the command on carriage return.
+        output.write(line.getBytes());
+        output.write('\r');
+        output.flush();
+    }
+
+    private AdaptiveTimeout getAdaptiveTimeout(String command) {
+        AdaptiveTimeout timeout = this.timeouts.get(command);
+        if (timeout == null) {
+            AdaptiveTimeout created = new AdaptiveTimeout();
+            timeout = this.timeouts.putIfAbsent(command, created);
+            if (timeout == null) {
+                timeout = created;
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Block until the specified request is responded or its timeout expires. On timeout the data
+     * collected so far is send as incomplete response. If the waiting thread is interrupted the
+     * request is failed, so the next requests are not blocked by it.
+     */
+    private void awaitResponse(Request request, long timeout) {
+        long deadline = Clock.elapsedMillis() + timeout;
+        synchronized (this.lock) {
+            while (this.currentRequest == request) {
+                long remaining = deadline - Clock.elapsedMillis();
+                if (remaining <= 0) {
+                    request.metrics.recordTimeout();
+                    request.timeout.onTimeout();
+                    if (request.responseHeader != null && isHexByte(request.responseHeader)) {
+                        this.timedOutHeaders.addLast(request.responseHeader);
+                        if (this.timedOutHeaders.size() > MAX_TIMED_OUT_HEADERS) {
+                            this.timedOutHeaders.removeFirst();
+                        }
+                    }
+                    respond(this.framer.getResponse(), false);
+                    this.framer.clear();
+                    return;
+                }
+                try {
+                    this.lock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    respond(new InterruptedIOException("Interrupted while awaiting the response."));
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Block until no command is executing and the connection is established. Must be called while
+     * holding the lock, the waiting thread is woken up by the notification of the lock.
+     * @return false if the deadline has passed or the waiting thread was interrupted.
+     */
+    private boolean awaitIdle(long deadline) {
+        while (this.currentRequest != null || this.output == null) {
+            long remaining = deadline - Clock.elapsedMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                this.lock.wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the response belongs to a previous request. Such responses are received when the
+     * adapter responds after the request has timed out.
+     *
+     * Only the positive responses expected by a timed out request, but not by the current one, are
+     * considered stale. Any other response - including the negative responses and the adapter
+     * messages (NO DATA, ?, ...) - is delivered to the current request.
+     * @param response the complete response.
+     * @param responseHeader the expected response header of the current request, null if any
+     *                       response is accepted.
+     * @param timedOutHeaders the expected response headers of the timed out requests.
+     * @return true iff the response must be discarded.
+     */
+    static boolean isStale(String response,
+                           String responseHeader,
+                           Iterable<String> timedOutHeaders) {
+        if (responseHeader == null || !isHexByte(responseHeader)) {
+            return false;
+        }
+        return isHexByte(response)
+                && !Utils.matchesHeader(response, responseHeader)
+                && !response.startsWith(NEGATIVE_RESPONSE)
+                && findHeader(response, timedOutHeaders) != null;
+    }
+
+    /**
+     * @return the first of the headers matched by the response, or null if there is none.
+     */
+    private static String findHeader(String response, Iterable<String> headers) {
+        for (String header : headers) {
+            if (Utils.matchesHeader(response, header)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHexByte(String data) {
+        return data.length() >= 2
+                && Character.digit(data.charAt(0), 16) >= 0
+                && Character.digit(data.charAt(1), 16) >= 0;
     }
 
     @Override
     public void run() {
-        Log.d(this.getClass().getSimpleName(), "Starting...");
+        DebugLog.d(this.getClass().getSimpleName(), "Starting...");
         running = true;
-        StringBuilder buffer = new StringBuilder();
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
         try {
             while (!Thread.currentThread().isInterrupted() && !stopWorker) {
-                // Check if we've hit a timeout
-                Long now = SystemClock.elapsedRealtime();
-                if (currentCommand != null && now > nextTimeout) {
-                    respond(buffer.toString(), false);
-                    buffer.setLength(0);
-                }
-
                 // Check if the serial IO is initialized.
                 if (this.input == null || this.output == null || this.restart) {
                     initIO();
+                    if (this.input == null) {
+                        awaitReconnect();
+                        continue;
+                    }
                 }
 
-                // Try to read the available data from the serial input stream, trim it and try to
-                // parse response from it.
-                if (this.input != null) {
-                    int bytesAvailable = readSerialData(buffer);
-                    if (bytesAvailable > 0) {
-                        trimSerialData(buffer);
-                        checkForResponse(buffer);
+                // Block until data is available on the serial input stream and feed it to the
+                // framer. The response is send as soon as the prompt is received.
+                int bytesRead = readSerialData(readBuffer);
+                if (bytesRead > 0) {
+                    synchronized (this.lock) {
+                        onData(readBuffer, bytesRead);
                     }
                 }
-
-                SystemClock.sleep(20);
             }
         } finally {
-            running = false;
-            Log.d(this.getClass().getSimpleName(), "Worker stopped");
+            cleanUp();
+            respond(new IOException("Stopping bluetooth serial worker..."));
+            synchronized (this.lock) {
+                running = false;
+                this.lock.notifyAll();
+            }
+            DebugLog.d(this.getClass().getSimpleName(), "Worker stopped");
+        }
+    }
+
+    /**
+     * Feed the read data to the framer and respond once the response is complete. Must be called
+     * while holding the lock.
+     */
+    private void onData(byte[] data, int length) {
+        long now = System.nanoTime();
+        Request request = this.currentRequest;
+        if (request != null && !request.firstByteReceived) {
+            request.firstByteReceived = true;
+            request.metrics.getSendToFirstByte().record(now - request.sendNanos);
+        }
+        if (!this.framer.feed(data, 0, length)) {
+            return;
+        }
+
+        String response = this.framer.getResponse();
+        boolean truncated = this.framer.isTruncated();
+        this.framer.clear();
+        if (request == null) {
+            // No command was send, nobody is waiting for this response.
+            return;
+        }
+        if (request.counted && response.equals(UNKNOWN_COMMAND)) {
+            resendUncounted(request);
+            return;
+        }
+        if (isStale(response, request.responseHeader, this.timedOutHeaders)) {
+            DebugLog.d(this.getClass().getSimpleName(), "Discarding stale response \"" + response
+                    + "\" for " + request.command);
+            // A timed out request gets at most one late response.
+            this.timedOutHeaders.remove(findHeader(response, this.timedOutHeaders));
+            request.firstByteReceived = false;
+            return;
+        }
+
+        if (request.counted) {
+            this.suffixRejections = 0;
+        } else if (request.resent && !response.equals(UNKNOWN_COMMAND)) {
+            onSuffixRejected();
+        }
+
+        request.metrics.getSendToPrompt().record(now - request.sendNanos);
+        request.timeout.onResponse(now - request.sendNanos);
+        respond(response, !truncated);
+    }
+
+    /**
+     * Record that the request was rejected with the expected frames suffix, but was answered
+     * without it. Must be called while holding the lock.
+     */
+    private void onSuffixRejected() {
+        this.suffixRejections++;
+        if (this.suffixRejections >= MAX_SUFFIX_REJECTIONS && this.expectedFramesSupported) {
+            DebugLog.i(this.getClass().getSimpleName(),
+                    "Expected frames suffix is not supported by the adapter, disabling it.");
+            this.expectedFramesSupported = false;
         }
     }
 
     /**
-     * Send the specified response to the listener if there is a command currently executing.
+     * Resend the request without the expected frames suffix, after it was rejected by the adapter.
+     * Must be called while holding the lock.
+     */
+    private void resendUncounted(Request request) {
+        request.counted = false;
+        request.resent = true;
+        request.firstByteReceived = false;
+        this.framer.reset(request.wire);
+        try {
+            OutputStream output = this.output;
+            if (output == null) {
+                throw new IOException("Connection lost.");
+            }
+            writeLine(output, request.wire);
+        } catch (IOException ex) {
+            respond(ex);
+        }
+    }
+
+    /**
+     * Wait before the next connection attempt. Woken up immediately if the worker is stopped.
+     */
+    private void awaitReconnect() {
+        synchronized (this.lock) {
+            if (this.stopWorker) {
+                return;
+            }
+            try {
+                this.lock.wait(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Send the specified response to the listener of the request currently executing, if any.
      *
-     * The respons is send in non-blocking manner in another thread.
+     * The respons is send in non-blocking manner in the callback lane of the {@link Executor}.
      * @param response the response
      * @param isComplete true iff the response is complete. False if we've hit timeout and there
      *                   is some available data that is being send as response.
      */
     private void respond(final String response, final boolean isComplete) {
-        if (this.currentCommand == null) {
-            // No command was send, no need for posting a replay.
-            return;
+        final Request request;
+        synchronized (this.lock) {
+            request = this.currentRequest;
+            if (request == null) {
+                // No command was send, no need for posting a replay.
+                return;
+            }
+            this.currentRequest = null;
+            this.lock.notifyAll();
         }
-        this.currentCommand = null;
 
-        Executor.execute(new Runnable() {
+        Executor.executeCallback(new Runnable() {
             @Override
             public void run() {
-                if (SerialWorker.this.responseListener != null) {
-                    String re = response.replace("\n", "").replace("\r", "");
-                    try {
-                        if (isComplete) {
-                            responseListener.onResponse(re);
-                        } else {
-                            responseListener.onIncompleteResponse(re);
-                        }
-                    } catch (RuntimeException ex) {
-                        Log.d(this.getClass().getSimpleName(),
-                                "Got exception for " + re, ex);
+                try {
+                    if (isComplete) {
+                        request.listener.onResponse(response);
+                    } else {
+                        request.listener.onIncompleteResponse(response);
                     }
+                } catch (RuntimeException ex) {
+                    DebugLog.d(this.getClass().getSimpleName(), "Got exception for " + response, ex);
                 }
             }
         });
     }
 
     /**
-     * Send an error response to the current listener if there is a command currently executing.
+     * Send an error response to the listener of the request currently executing, if any.
      *
-     * The error is send in non-blocking manner in another thread.
+     * The error is send in non-blocking manner in the callback lane of the {@link Executor}.
      * @param error the error to be send.
      */
     private void respond(final Exception error) {
-        if (this.currentCommand == null) {
-            // No command was send, no need for posting an error.
-            return;
+        final Request request;
+        synchronized (this.lock) {
+            request = this.currentRequest;
+            if (request == null) {
+                // No command was send, no need for posting an error.
+                return;
+            }
+            request.metrics.recordError();
+            this.currentRequest = null;
+            this.lock.notifyAll();
         }
-        this.currentCommand = null;
 
-        Executor.execute(new Runnable() {
+        Executor.executeCallback(new Runnable() {
             @Override
             public void run() {
-                if (SerialWorker.this.responseListener != null) {
-                    Log.d(this.getClass().getSimpleName(), "Responding with error", error);
-                    try {
-                        responseListener.onError(error);
-                    } catch (RuntimeException ex) {
-                        Log.d(this.getClass().getSimpleName(),
-                                "Got exception on .onError()", ex);
-                    }
+                DebugLog.d(this.getClass().getSimpleName(), "Responding with error", error);
+                try {
+                    request.listener.onError(error);
+                } catch (RuntimeException ex) {
+                    DebugLog.d(this.getClass().getSimpleName(), "Got exception on .onError()", ex);
                 }
             }
         });
@@ -246,83 +709,54 @@ class SerialWorker implements Runnable {
     private void initIO() {
         cleanUp();
 
-        Log.d(this.getClass().getSimpleName(), "Initializing bluetooth serial connection.");
+        DebugLog.d(this.getClass().getSimpleName(), "Initializing serial connection.");
 
         try {
-            this.device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(this.deviceAddress);
-            //Standard SerialPortService ID
-            UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-            SystemClock.sleep(1);
-            try {
-                this.socket = this.device.createInsecureRfcommSocketToServiceRecord(uuid);
-                this.socket.connect();
-            } catch (IOException ex) {
-                Method createMethod = device.getClass()
-                        .getMethod("createInsecureRfcommSocket", new Class[] { int.class });
-                this.socket = (BluetoothSocket)createMethod.invoke(device, 1);
-                this.socket.connect();
+            this.transport.connect();
+            this.input = this.transport.getInputStream();
+            synchronized (this.lock) {
+                this.output = this.transport.getOutputStream();
+                // Wake up the commands waiting for the connection.
+                this.lock.notifyAll();
             }
-            this.output = this.socket.getOutputStream();
-            this.input = this.socket.getInputStream();
-            Log.d(this.getClass().getSimpleName(), "Initialization completed, connection established.");
+            if (this.connectedBefore) {
+                Metrics.recordReconnect();
+            }
+            this.connectedBefore = true;
+            DebugLog.d(this.getClass().getSimpleName(), "Initialization completed, connection established.");
         } catch (Exception ex) {
-            Log.e(
+            DebugLog.e(
                     this.getClass().getSimpleName(),
-                    "Failed to establish bluetooth serial connection.",
+                    "Failed to establish serial connection.",
                     ex);
         }
     }
 
-    private int readSerialData(StringBuilder buffer) {
+    /**
+     * Read the available data from the serial input stream. Blocks until at least one byte is
+     * available or the connection is closed.
+     * @return the number of bytes read in the provided buffer.
+     */
+    private int readSerialData(byte[] readBuffer) {
         try {
-            int bytesAvailable = this.input.available();
-            if (bytesAvailable > 0) {
-                byte[] packetBytes = new byte[bytesAvailable];
-                this.input.read(packetBytes);
-                buffer.append(new String(packetBytes));
+            int bytesRead = this.input.read(readBuffer);
+            if (bytesRead < 0) {
+                DebugLog.d(this.getClass().getSimpleName(), "Bluetooth serial input stream closed.");
+                cleanUp();
             }
-            return bytesAvailable;
+            return bytesRead;
         } catch (IOException ex) {
-            Log.d(
-                this.getClass().getSimpleName(),
-                "Got exception while reading the bluetooth serial input stream.",
-                ex);
+            if (!this.stopWorker && !this.restart) {
+                DebugLog.d(
+                    this.getClass().getSimpleName(),
+                    "Got exception while reading the serial input stream.",
+                    ex);
+            }
             cleanUp();
         }
         return 0;
     }
 
-    private void trimSerialData(StringBuilder buffer) {
-        String trimmed = buffer.toString().replace("\n", "").replace("\r", "");
-        if (this.currentCommand != null && trimmed.startsWith(this.currentCommand)) {
-            // Some adapters have echo enabled by default and always contain the
-            // command in front of the real response. This cleans it up.
-            trimmed = trimmed.substring(this.currentCommand.length());
-        }
-        if (trimmed.contains("STOPPED")) {
-            // Depending on what the device is doing it may respond with "STOPPED"
-            // indicating that an action is interrupted. This doesn't bring any
-            // useful information for our use case. So - ignore it.
-            trimmed = trimmed.replace("STOPPED", "");
-        }
-        buffer.setLength(0);
-        buffer.append(trimmed);
-    }
-
-    private void checkForResponse(StringBuilder data) {
-        String current = data.toString();
-        if (current.contains(">")) {
-            // Extract all data before the first '>' char and use it as response.
-            String response = current.substring(0, current.indexOf('>'));
-
-            // Empty the buffer. SerialWorker is working with only one command at time, so any
-            // excessive data here can be purged without side effects.
-            data.setLength(0);
-
-            respond(response, true);
-        }
-    }
-
     public boolean isRunning() {
         return this.running;
     }
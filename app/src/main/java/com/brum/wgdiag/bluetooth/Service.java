@@ -1,14 +1,16 @@
 package com.brum.wgdiag.bluetooth;
 
-import android.util.Log;
-
 import com.brum.wgdiag.command.Command;
+import com.brum.wgdiag.util.DebugLog;
 import com.brum.wgdiag.util.Executor;
 
 /**
  * Bluetooth service code. Provide static initialized interface for sending commands and receiving
  * responses. Initialize the bluetooth serial connection once .init() is invoked and keep it open
  * until .stop() is invoked.
+ *
+ * The {@link SimulatedTransport#ADDRESS} device address selects the simulated adapter instead of
+ * a bluetooth device.
  */
 public class Service {
     private static SerialWorker worker = null;
@@ -19,15 +21,26 @@ public class Service {
      * @throws IllegalStateException if already started.
      */
     public static void init(String deviceAddress) {
+        if (SimulatedTransport.ADDRESS.equals(deviceAddress)) {
+            init(new SimulatedTransport());
+        } else {
+            init(new BluetoothTransport(deviceAddress));
+        }
+    }
+
+    /**
+     * Initialize the service with the specified serial transport.
+     * @param transport the transport to the adapter.
+     */
+    public static void init(Transport transport) {
         if (Service.worker != null && Service.worker.isRunning()) {
             return;
         }
 
-        if (Service.worker == null) {
-            Service.worker = new SerialWorker(deviceAddress);
-        }
+        // Stopped worker can't be restarted.
+        Service.worker = new SerialWorker(transport);
 
-        Executor.execute(Service.worker);
+        Executor.start("serial", Service.worker);
     }
 
     public static void stop() {
@@ -40,45 +53,65 @@ public class Service {
     }
 
     /**
-     * Set the response listener. This listener will receive the next response.
+     * Send the specified command over the bluetooth serial connection.
      *
-     * @param listener the listener.
+     * The commands are send in the order they are submitted, each after the previous one is
+     * responded or timed out.
+     * @param cmd the command.
+     * @return the pending response of the command.
      * @throws IllegalStateException if not started.
      */
-    public static void setResponseListener(final ResponseListener listener) {
-        Service.worker.setResponseListenerEx(new ResponseListenerEx() {
-            @Override
-            public void onResponse(String response) {
-                Log.d(Service.class.getSimpleName(), " < \"" + response + "\"");
-                listener.onResponse(response);
-            }
-
-            @Override
-            public void onIncompleteResponse(String response) {
-                Log.d(Service.class.getSimpleName(), " (timeout) < \"" + response + "\"");
-                listener.onIncompleteResponse(response);
-            }
-
-            @Override
-            public void onError(Exception ex) {
-                Log.d(Service.class.getSimpleName(), "Got error, restarting.", ex);
-                Service.worker.restart();
-                if (listener instanceof ResponseListenerEx) {
-                    ((ResponseListenerEx)listener).onError(ex);
-                } else {
-                    listener.onIncompleteResponse("");
-                }
-            }
-        });
+    public static PendingResponse submit(Command cmd) {
+        PendingResponse pending = new PendingResponse();
+        submit(cmd, pending);
+        return pending;
     }
 
     /**
-     * Send the specified command over the bluetooth serial connection.
+     * Send the specified command over the bluetooth serial connection. Only the response of this
+     * command is delivered to the listener, the late responses of the previous commands are
+     * discarded by the expected response header of the command.
+     *
+     * If the listener doesn't implement {@link ResponseListenerEx} errors are delivered as an empty
+     * incomplete response.
      * @param cmd the command.
+     * @param listener the listener of the command response.
      * @throws IllegalStateException if not started.
      */
-    public static void write(Command cmd) {
-        Service.worker.sendCommand(cmd.getRequestCommand(), cmd.getTimeoutMillis());
-        Log.d(Service.class.getSimpleName(), " > \"" + cmd.getRequestCommand() + "\"");
+    public static void submit(Command cmd, final ResponseListener listener) {
+        if (Service.worker == null) {
+            throw new IllegalStateException("Service is not started.");
+        }
+
+        Service.worker.sendCommand(
+                cmd.getRequestCommand(),
+                cmd.getResponseHeader(),
+                cmd.getExpectedFrames(),
+                cmd.getTimeoutMillis(),
+                new ResponseListenerEx() {
+                    @Override
+                    public void onResponse(String response) {
+                        DebugLog.d(Service.class.getSimpleName(), " < \"" + response + "\"");
+                        listener.onResponse(response);
+                    }
+
+                    @Override
+                    public void onIncompleteResponse(String response) {
+                        DebugLog.d(Service.class.getSimpleName(), " (timeout) < \"" + response + "\"");
+                        listener.onIncompleteResponse(response);
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        DebugLog.d(Service.class.getSimpleName(), "Got error, restarting.", ex);
+                        Service.worker.restart();
+                        if (listener instanceof ResponseListenerEx) {
+                            ((ResponseListenerEx)listener).onError(ex);
+                        } else {
+                            listener.onIncompleteResponse("");
+                        }
+                    }
+                });
+        DebugLog.d(Service.class.getSimpleName(), " > \"" + cmd.getRequestCommand() + "\"");
     }
 }
@@ -0,0 +1,206 @@
+package com.brum.wgdiag.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Serial transport connected to {@link Elm327Simulator}. Used for testing and measuring the
+ * command throughput without a vehicle and an adapter.
+ *
+ * The output of each command is available for reading after the configured latency (plus random
+ * jitter) for the bus commands, and is then paced at the configured baud rate. Each byte takes 10
+ * bits on the serial line.
+ *
+ * Like the real adapter, a command received while the adapter is still waiting for the ECU aborts
+ * the previous one - the adapter answers "STOPPED" and the new command is lost.
+ */
+public class SimulatedTransport implements Transport {
+    /**
+     * Device address that selects the simulated transport.
+     */
+    public static final String ADDRESS = "SIMULATOR";
+
+    public static final int DEFAULT_BAUD_RATE = 10400;
+    public static final long DEFAULT_LATENCY_MILLIS = 25;
+    public static final long DEFAULT_JITTER_MILLIS = 10;
+
+    private static final int BITS_PER_BYTE = 10;
+    private static final String STOPPED = "STOPPED\r\r" + Elm327Simulator.PROMPT;
+
+    private final Elm327Simulator simulator;
+    private final long nanosPerByte;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final Random random = new Random();
+
+    private final Object lock = new Object();
+    private final StringBuilder request = new StringBuilder();
+    private boolean connected = false;
+    private byte[] output = new byte[0];
+    private int position = 0;
+    private long readyAtNanos = 0;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            return read(data, 0, 1) < 0 ? -1 : data[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            return SimulatedTransport.this.read(data, offset, length);
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            SimulatedTransport.this.write((byte) b);
+        }
+    };
+
+    public SimulatedTransport() {
+        this(new Elm327Simulator(), DEFAULT_BAUD_RATE, DEFAULT_LATENCY_MILLIS, DEFAULT_JITTER_MILLIS);
+    }
+
+    /**
+     * @param baudRate the serial line speed used for pacing the output. 0 for no pacing.
+     * @param latencyMillis the delay before the output of the bus commands is available.
+     * @param jitterMillis the maximal random delay added to the latency.
+     */
+    public SimulatedTransport(Elm327Simulator simulator,
+                              int baudRate,
+                              long latencyMillis,
+                              long jitterMillis) {
+        this.simulator = simulator;
+        this.nanosPerByte = baudRate > 0 ? 1000000000L * BITS_PER_BYTE / baudRate : 0;
+        this.latencyNanos = latencyMillis * 1000000L;
+        this.jitterNanos = jitterMillis * 1000000L;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        synchronized (this.lock) {
+            this.connected = true;
+            this.request.setLength(0);
+            this.output = new byte[0];
+            this.position = 0;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.outputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.lock) {
+            this.connected = false;
+            this.lock.notifyAll();
+        }
+    }
+
+    private void write(byte b) throws IOException {
+        synchronized (this.lock) {
+            checkConnected();
+            if (b == '\n') {
+                return;
+            }
+            if (b != '\r') {
+                this.request.append((char) (b & 0xFF));
+                return;
+            }
+
+            String command = this.request.toString();
+            this.request.setLength(0);
+
+            long now = System.nanoTime();
+            if (this.position < this.output.length && now < this.readyAtNanos) {
+                // Still waiting for the ECU, the previous command is aborted.
+                this.output = STOPPED.getBytes();
+                this.position = 0;
+                this.readyAtNanos = now;
+                this.lock.notifyAll();
+                return;
+            }
+
+            long delay = 0;
+            if (Elm327Simulator.isBusCommand(command)) {
+                delay = this.simulator.isEcuResponding()
+                        ? this.latencyNanos
+                        : this.simulator.getTimeoutMillis() * 1000000L;
+                if (this.jitterNanos > 0) {
+                    delay += (long) (this.random.nextDouble() * this.jitterNanos);
+                }
+            }
+            // A new command interrupts the output of the previous one.
+            this.output = this.simulator.process(command).getBytes();
+            this.position = 0;
+            this.readyAtNanos = now + delay;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Block until at least one byte is available and read the bytes that are available so far.
+     */
+    private int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        synchronized (this.lock) {
+            while (true) {
+                checkConnected();
+
+                long waitNanos;
+                if (this.position >= this.output.length) {
+                    waitNanos = 0;
+                } else {
+                    long elapsed = System.nanoTime() - this.readyAtNanos;
+                    int available = this.output.length - this.position;
+                    if (this.nanosPerByte > 0 && elapsed >= 0) {
+                        available = (int) Math.min(
+                                available,
+                                elapsed / this.nanosPerByte + 1 - this.position);
+                    }
+
+                    if (elapsed >= 0 && available > 0) {
+                        int count = Math.min(available, length);
+                        System.arraycopy(this.output, this.position, data, offset, count);
+                        this.position += count;
+                        return count;
+                    }
+                    waitNanos = elapsed < 0
+                            ? -elapsed
+                            : this.nanosPerByte * this.position - elapsed;
+                }
+
+                try {
+                    if (waitNanos <= 0) {
+                        this.lock.wait();
+                    } else {
+                        this.lock.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading.", ex);
+                }
+            }
+        }
+    }
+
+    private void checkConnected() throws IOException {
+        if (!this.connected) {
+            throw new IOException("Simulated transport is closed.");
+        }
+    }
+}
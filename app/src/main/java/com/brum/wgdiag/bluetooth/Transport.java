@@ -0,0 +1,28 @@
+package com.brum.wgdiag.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serial transport to the OBDII adapter, used by the serial worker.
+ *
+ * The transport can be re-connected after it is closed. {@link #close()} can be invoked from any
+ * thread and must unblock the readers of the input stream.
+ */
+public interface Transport {
+    /**
+     * Establish the connection. Blocks until the connection is established or fails.
+     * @throws IOException if the connection can't be established.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the connection.
+     */
+    void close() throws IOException;
+}
@@ -16,6 +16,19 @@ public interface Command {
      */
     boolean verifyResponse(String response);
 
+    /**
+     * Get the expected response header.
+     * @return the header or null if any response is accepted.
+     */
+    String getResponseHeader();
+
+    /**
+     * Get the number of response frames expected from the ECU. The adapter returns as soon as
+     * these are received instead of waiting for more frames until its timeout expires.
+     * @return the number of frames or 0 if unknown, e.g. for the AT commands.
+     */
+    int getExpectedFrames();
+
     /**
      * Get command timeout.
      * @return timeout.
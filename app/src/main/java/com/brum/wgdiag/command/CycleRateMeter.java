@@ -0,0 +1,49 @@
+package com.brum.wgdiag.command;
+
+import com.brum.wgdiag.util.DebugLog;
+
+/**
+ * Measures the rate at which the commands of a diag package are executed. A cycle is one pass over
+ * all package commands.
+ */
+class CycleRateMeter {
+    private static final long WINDOW_MILLIS = 5000;
+
+    private final int commandsPerCycle;
+    private int completed = 0;
+    private long windowStart = -1;
+    private volatile double cycleRate = 0;
+
+    CycleRateMeter(int commandsPerCycle) {
+        this.commandsPerCycle = Math.max(1, commandsPerCycle);
+    }
+
+    /**
+     * Called when a command has completed successfully.
+     * @param now current time in milliseconds.
+     */
+    synchronized void onCommandCompleted(long now) {
+        if (this.windowStart < 0) {
+            this.windowStart = now;
+            return;
+        }
+
+        this.completed++;
+        long elapsed = now - this.windowStart;
+        if (elapsed >= WINDOW_MILLIS) {
+            this.cycleRate = this.completed * 1000.0 / this.commandsPerCycle / elapsed;
+            this.completed = 0;
+            this.windowStart = now;
+            DebugLog.d(Processor.class.getSimpleName(),
+                    String.format("%.2f cycles/s, %.2f commands/s",
+                            this.cycleRate, this.cycleRate * this.commandsPerCycle));
+        }
+    }
+
+    /**
+     * @return number of cycles per second measured over the last complete window.
+     */
+    double getCycleRate() {
+        return this.cycleRate;
+    }
+}
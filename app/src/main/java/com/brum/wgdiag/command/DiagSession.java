@@ -0,0 +1,52 @@
+package com.brum.wgdiag.command;
+
+import com.brum.wgdiag.command.diag.Packages;
+import com.brum.wgdiag.command.impl.Utils;
+
+import java.util.List;
+
+/**
+ * Tracks the diagnostic session established with the ECU by the package init commands.
+ *
+ * On the K-line the session is kept alive by the adapter wakeup messages while it is idle - the
+ * init commands set them to the KWP tester present request (ATWM...3E). So a package switch or a
+ * recoverable error only needs to check that the ECU still responds to {@link #TESTER_PRESENT},
+ * and the full init sequence is executed only if it doesn't.
+ *
+ * Over CAN there are no wakeup messages, so the ECU falls back to its default session once the
+ * adapter is idle. It still answers the tester present there, but not the security access and the
+ * routine gated reads, so the session established by {@link Packages#CAN_INIT_COMMANDS} is never
+ * resumed and the init sequence is always executed.
+ */
+class DiagSession {
+    /**
+     * KWP2000 tester present request.
+     */
+    static final Command TESTER_PRESENT = Utils.createCommand("3E", "7E", 1000);
+
+    private static volatile List<Command> initCommands = null;
+
+    /**
+     * @return true iff a session was established by the specified init commands.
+     */
+    static boolean isEstablished(List<Command> initCommands) {
+        return !initCommands.isEmpty()
+                && initCommands != Packages.CAN_INIT_COMMANDS
+                && DiagSession.initCommands == initCommands;
+    }
+
+    /**
+     * Record that all of the specified init commands were executed successfully.
+     */
+    static void established(List<Command> initCommands) {
+        DiagSession.initCommands = initCommands;
+    }
+
+    /**
+     * Record that the session is lost, e.g. the adapter was reset.
+     */
+    static void invalidate() {
+        DiagSession.initCommands = null;
+        SessionTiming.invalidate();
+    }
+}
@@ -2,23 +2,31 @@ package com.brum.wgdiag.command;
 
 import android.app.Activity;
 import android.os.Handler;
-import android.os.SystemClock;
-import android.util.Log;
 import android.widget.Toast;
 
 import com.brum.wgdiag.activity.utils.ExecutionInterrupter;
 import com.brum.wgdiag.bluetooth.Constants;
-import com.brum.wgdiag.bluetooth.ResponseListener;
+import com.brum.wgdiag.bluetooth.PendingResponse;
 import com.brum.wgdiag.bluetooth.ResponseListenerEx;
 import com.brum.wgdiag.bluetooth.Service;
+import com.brum.wgdiag.command.diag.CommandScheduler;
+import com.brum.wgdiag.command.diag.DataFrame;
 import com.brum.wgdiag.command.diag.DataHandler;
 import com.brum.wgdiag.command.diag.DiagCommand;
-import com.brum.wgdiag.command.diag.Field;
+import com.brum.wgdiag.command.diag.DiagResponse;
 import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.diag.Packages;
+import com.brum.wgdiag.command.diag.impl.DynamicLocalId;
+import com.brum.wgdiag.command.impl.Utils;
+import com.brum.wgdiag.metrics.MetricSet;
+import com.brum.wgdiag.metrics.Metrics;
+import com.brum.wgdiag.util.Clock;
+import com.brum.wgdiag.util.DebugLog;
 import com.brum.wgdiag.util.Executor;
+import com.brum.wgdiag.util.Task;
+import com.brum.wgdiag.util.TaskHandle;
 
-import java.math.BigDecimal;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -29,6 +37,10 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 
 public class Processor {
+    private static volatile DiagPipeline pipeline = null;
+    // Cleared once the ECU refuses to define a local identifier, see DynamicLocalId. Set again
+    // for each connection.
+    private static volatile boolean dynamicLocalIdSupported = true;
 
     /**
      * Block and execute the init commands. If device is not connected or the device verification
@@ -36,8 +48,12 @@ public class Processor {
      * @return true iff all commands are executed and responses are as expected.
      */
     public static boolean verifyDevice(String address) {
-        Log.d(Processor.class.getSimpleName(), "Verifying device...");
+        DebugLog.d(Processor.class.getSimpleName(), "Verifying device...");
         Service.init(address);
+        // The verification resets the adapter, and the adapter or the vehicle may be another one.
+        DiagSession.invalidate();
+        SessionTiming.reset();
+        Processor.dynamicLocalIdSupported = true;
 
         List<Command> initCommands = Constants.VERIFY_DEVICE_COMMANDS;
 
@@ -54,7 +70,15 @@ public class Processor {
     /**
      * Continuous diag package executor. Execute first the init commands and fail if any of them
      * fails. If all succeed - iterate over the diag commands and on each successful response -
-     * update the UI using the diag data handler.
+     * update the UI using the diag data handler. The next command is send as soon as the previous
+     * one is responded, see {@link DiagPipeline}.
+     *
+     * The init commands are skipped if the session established by them is still alive, see
+     * {@link DiagSession}. The timing of a new session is adjusted, see {@link SessionTiming}.
+     *
+     * The package fields are read with a single dynamically defined local identifier if the ECU
+     * supports it, falling back to the package commands otherwise. The packages read over CAN use
+     * the package commands, see {@link DynamicLocalId}.
      * @param pkg The diagnostic commands package.
      * @param handler Handler for updating the UI.
      */
@@ -64,15 +88,23 @@ public class Processor {
                                                           final Activity activity) {
         final AtomicBoolean interrupt = new AtomicBoolean(false);
 
-        final Runnable processorRunnable = new Runnable() {
+        final DiagPipeline pipeline = new DiagPipeline(pkg, handler, interrupt);
+        final DynamicLocalId dynamicLocalId =
+                (pkg.getInitCommands().isEmpty() || Packages.isOverCan(pkg))
+                        ? null : DynamicLocalId.create(pkg);
+
+        final Task processorTask = new Task() {
             @Override
             public void run() {
-                final AtomicBoolean initiliazed = new AtomicBoolean(false);
-                final AtomicBoolean executed = new AtomicBoolean(false);
-                Iterator<DiagCommand> iterator = pkg.getCommandIterator();
+                Processor.pipeline = pipeline;
 
                 while (!interrupt.get()) {
-                    if (initiliazed.get() == false) {
+                    ExecResult resumed = resumeSession(pkg.getInitCommands(), interrupt);
+                    if (resumed == ExecResult.INTERRUPTED) {
+                        break;
+                    }
+
+                    if (resumed == ExecResult.FAILURE) {
                         for (final Command cmd : pkg.getInitCommands()) {
                             ExecResult result = execAndVerify(cmd, interrupt);
 
@@ -82,7 +114,8 @@ public class Processor {
                                     public void run() {
                                         Toast.makeText(
                                                 activity,
-                                                "Failed on " + cmd.getRequestCommand() + ", aborting.",
+                                                "Failed on " + cmd.getRequestCommand()
+                                                        + ", aborting.",
                                                 Toast.LENGTH_SHORT).show();
                                     }
                                 });
@@ -92,114 +125,466 @@ public class Processor {
                                 break;
                             }
                         }
-                        initiliazed.set(true);
                     }
 
                     if (interrupt.get()) {
                         break;
                     }
+                    DiagSession.established(pkg.getInitCommands());
 
-                    final DiagCommand cmd = iterator.next();
-                    executed.set(false);
-
-                    Service.setResponseListener(new ResponseListenerEx() {
-                        @Override
-                        public void onResponse(String response) {
-                            executed.set(true);
-                            if (interrupt.get()) {
-                                return;
-                            }
-                            if (cmd.verifyResponse(response)) {
-                                Map<String, String> stringData = cmd.parseResponse(response);
-                                Map<String, BigDecimal> decimalData = cmd.parseResponseValues(response);
-                                for (String key : stringData.keySet()) {
-                                    handler.handle(key, stringData.get(key));
-                                    handler.handle(key, decimalData.get(key));
-                                }
-                            }
-                        }
+                    if (resumed == ExecResult.FAILURE
+                            && !pkg.getInitCommands().isEmpty()
+                            && !Packages.isOverCan(pkg)
+                            && SessionTiming.isEnabled()) {
+                        adjustTiming(interrupt);
+                    }
 
-                        @Override
-                        public void onIncompleteResponse(String response) {
-                            executed.set(true);
-                            if (interrupt.get()) {
-                                return;
-                            }
-                            for (Field field : cmd.getDiagFields()) {
-                                handler.handle(field.getKey(), "NA");
-                                handler.handle(field.getKey(), BigDecimal.ZERO);
-                            }
+                    Package active = pkg;
+                    if (dynamicLocalId != null && Processor.dynamicLocalIdSupported) {
+                        ExecResult defined = defineLocalId(dynamicLocalId, interrupt);
+                        if (defined == ExecResult.INTERRUPTED) {
+                            break;
+                        } else if (defined == ExecResult.SUCCESS) {
+                            active = dynamicLocalId.getPackage();
                         }
+                    }
 
-                        @Override
-                        public void onError(Exception ex) {
-                            initiliazed.set(false);
-                        }
-                    });
+                    // Each response dispatches the next command, so there is nothing to do here
+                    // until the pipeline is broken by an error and re-initialization is required.
+                    pipeline.start(active);
+                    pipeline.awaitBroken();
 
-                    Service.write(cmd);
-                    while (executed.get() == false && interrupt.get() == false) {
-                        SystemClock.sleep(10);
+                    if (pipeline.isUnstable() && !interrupt.get()) {
+                        DebugLog.w(Processor.class.getSimpleName(),
+                                "Session is unstable with the adjusted timing, restoring defaults.");
+                        restoreTiming(interrupt, true);
                     }
                 }
             }
 
-            public void stop() {
+            @Override
+            public void cancel() {
                 interrupt.set(true);
+                pipeline.wakeUp();
             }
         };
 
-        Executor.execute(processorRunnable);
+        final TaskHandle handle = Executor.start("processor", processorTask);
 
         return new ExecutionInterrupter() {
             @Override
             public void interrupt(boolean block) {
-                interrupt.set(true);
-                while (block && Executor.isRunning(processorRunnable)) {
-                    SystemClock.sleep(10);
+                handle.cancel();
+                if (block) {
+                    handle.await();
                 }
             }
         };
     }
 
+    /**
+     * Get the cycle rate achieved by the currently executing diag package.
+     * @return number of complete passes over the package commands per second.
+     */
+    public static double getCycleRate() {
+        DiagPipeline pipeline = Processor.pipeline;
+        return pipeline != null ? pipeline.meter.getCycleRate() : 0;
+    }
+
+    /**
+     * Get the load of the link by the currently executing diag package, see
+     * {@link CommandScheduler#getLoad()}.
+     * @return the ratio of the requested to the achieved command rate. Above 1 if the requested
+     * refresh rates can't be met.
+     */
+    public static double getLoad() {
+        DiagPipeline pipeline = Processor.pipeline;
+        return pipeline != null ? pipeline.scheduler.getLoad() : 0;
+    }
+
+    /**
+     * Pipelined diag command dispatcher. The next command is send as soon as the response of the
+     * current one is received, and the response is processed while the next command is executing.
+     */
+    private static class DiagPipeline {
+        private volatile Package pkg;
+        private volatile CommandScheduler scheduler;
+        private final DataHandler handler;
+        private final AtomicBoolean interrupt;
+        private volatile CycleRateMeter meter;
+        private final Object signal = new Object();
+        private final Object handlerLock = new Object();
+        private final Map<DiagCommand, DataFrame> frames = new IdentityHashMap<>();
+        private final Map<DiagCommand, MetricSet> commandMetrics = new IdentityHashMap<>();
+        private final MetricSet packageMetrics;
+        private boolean broken = false;
+        private volatile boolean overloaded = false;
+        private volatile boolean unstable = false;
+        // Accessed only from the callback lane.
+        private int consecutiveTimeouts = 0;
+
+        DiagPipeline(Package pkg, DataHandler handler, AtomicBoolean interrupt) {
+            this.pkg = pkg;
+            this.scheduler = pkg.createScheduler();
+            this.handler = handler;
+            this.interrupt = interrupt;
+            this.meter = new CycleRateMeter(pkg.getCommands().size());
+            this.packageMetrics = Metrics.getPackageMetrics(pkg.getName());
+        }
+
+        /**
+         * Start dispatching the commands of the specified package. The scheduler state is kept if
+         * the package is not changed.
+         */
+        void start(Package pkg) {
+            if (pkg != this.pkg) {
+                this.pkg = pkg;
+                this.scheduler = pkg.createScheduler();
+                this.meter = new CycleRateMeter(pkg.getCommands().size());
+            }
+            synchronized (this.signal) {
+                this.broken = false;
+                this.unstable = false;
+            }
+            dispatch();
+        }
+
+        /**
+         * @return true iff the pipeline was broken by consecutive timeouts with the adjusted
+         * session timing.
+         */
+        boolean isUnstable() {
+            return this.unstable;
+        }
+
+        private void breakPipeline() {
+            synchronized (this.signal) {
+                this.broken = true;
+                this.signal.notifyAll();
+            }
+        }
+
+        /**
+         * Block until the pipeline is broken by an error or the execution is interrupted.
+         */
+        void awaitBroken() {
+            synchronized (this.signal) {
+                while (!this.broken && !this.interrupt.get()) {
+                    try {
+                        this.signal.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        void wakeUp() {
+            synchronized (this.signal) {
+                this.signal.notifyAll();
+            }
+        }
+
+        /**
+         * Get the reusable frame of the specified command. Frames are filled and handled while
+         * holding the handler lock, so a frame is never refilled while being handled and the data
+         * handlers are never invoked concurrently.
+         */
+        private synchronized DataFrame getFrame(DiagCommand cmd) {
+            DataFrame frame = this.frames.get(cmd);
+            if (frame == null) {
+                frame = new DataFrame(cmd);
+                this.frames.put(cmd, frame);
+            }
+            return frame;
+        }
+
+        private synchronized MetricSet getCommandMetrics(DiagCommand cmd) {
+            MetricSet metrics = this.commandMetrics.get(cmd);
+            if (metrics == null) {
+                metrics = Metrics.getCommandMetrics(cmd.getRequestCommand());
+                this.commandMetrics.put(cmd, metrics);
+            }
+            return metrics;
+        }
+
+        private void dispatch() {
+            final DiagCommand cmd = this.scheduler.next();
+            if (this.scheduler.isOverloaded() != this.overloaded) {
+                this.overloaded = this.scheduler.isOverloaded();
+                DebugLog.w(Processor.class.getSimpleName(), this.overloaded
+                        ? String.format("Requested refresh rates exceed the link capacity, load %.2f",
+                                this.scheduler.getLoad())
+                        : "Requested refresh rates are met.");
+            }
+            final DataFrame frame = getFrame(cmd);
+            final MetricSet metrics = getCommandMetrics(cmd);
+            final long dispatchNanos = System.nanoTime();
+
+            Service.submit(cmd, new ResponseListenerEx() {
+                @Override
+                public void onResponse(String response) {
+                    if (interrupt.get()) {
+                        return;
+                    }
+                    packageMetrics.getSendToPrompt().record(System.nanoTime() - dispatchNanos);
+                    consecutiveTimeouts = 0;
+                    dispatch();
+
+                    long parseStart = System.nanoTime();
+                    if (cmd.verifyResponse(response)) {
+                        long now = Clock.elapsedMillis();
+                        DiagResponse parsed = cmd.parse(response);
+                        long handlerStart = System.nanoTime();
+                        synchronized (handlerLock) {
+                            frame.set(now, parsed);
+                            handler.handle(frame);
+                        }
+                        long handlerEnd = System.nanoTime();
+                        meter.onCommandCompleted(now);
+
+                        metrics.getParse().record(handlerStart - parseStart);
+                        metrics.getHandler().record(handlerEnd - handlerStart);
+                        packageMetrics.getParse().record(handlerStart - parseStart);
+                        packageMetrics.getHandler().record(handlerEnd - handlerStart);
+                    } else {
+                        metrics.recordError();
+                        packageMetrics.recordError();
+                    }
+                }
+
+                @Override
+                public void onIncompleteResponse(String response) {
+                    if (interrupt.get()) {
+                        return;
+                    }
+                    packageMetrics.recordTimeout();
+                    if (++consecutiveTimeouts >= SessionTiming.UNSTABLE_TIMEOUTS
+                            && SessionTiming.isAdjusted()) {
+                        consecutiveTimeouts = 0;
+                        unstable = true;
+                        breakPipeline();
+                        return;
+                    }
+                    dispatch();
+
+                    long handlerStart = System.nanoTime();
+                    synchronized (handlerLock) {
+                        frame.setIncomplete(Clock.elapsedMillis());
+                        handler.handle(frame);
+                    }
+                    long handlerTime = System.nanoTime() - handlerStart;
+                    metrics.getHandler().record(handlerTime);
+                    packageMetrics.getHandler().record(handlerTime);
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    packageMetrics.recordError();
+                    breakPipeline();
+                }
+            });
+        }
+    }
+
     private static enum ExecResult {
         SUCCESS, FAILURE, INTERRUPTED
     }
 
-    private static ExecResult execAndVerify(final Command cmd, AtomicBoolean interrupt) {
-        final AtomicBoolean executed = new AtomicBoolean(false);
-        final AtomicBoolean success = new AtomicBoolean(false);
+    /**
+     * Check if the session established by the specified init commands is still alive.
+     * @return SUCCESS iff the session can be reused, FAILURE if the init commands must be executed.
+     */
+    private static ExecResult resumeSession(List<Command> initCommands, AtomicBoolean interrupt) {
+        if (!DiagSession.isEstablished(initCommands)) {
+            return ExecResult.FAILURE;
+        }
 
-        Service.setResponseListener(new ResponseListener() {
-            @Override
-            public void onResponse(String response) {
-                Log.d("Processor", "onResponse()");
-                success.set(cmd.verifyResponse(response));
-                executed.set(true);
+        ExecResult result = execAndVerify(DiagSession.TESTER_PRESENT, interrupt);
+        if (result == ExecResult.SUCCESS) {
+            DebugLog.d(Processor.class.getSimpleName(), "Resuming the diagnostic session.");
+        } else if (result == ExecResult.FAILURE) {
+            DebugLog.d(Processor.class.getSimpleName(), "Diagnostic session lost, re-initializing.");
+            DiagSession.invalidate();
+        }
+        return result;
+    }
+
+    /**
+     * Define the local identifier reading the package fields. If the ECU refuses the definition
+     * with a negative response, it is not tried again on this connection. Other failures, e.g. a
+     * lost response, fall back to the package commands for this session only.
+     */
+    private static ExecResult defineLocalId(DynamicLocalId definition, AtomicBoolean interrupt) {
+        // Clearing fails if the local identifier is not defined, so its result is ignored.
+        if (exec(definition.getClearCommand(), interrupt) == null) {
+            return ExecResult.INTERRUPTED;
+        }
+
+        for (Command cmd : definition.getDefineCommands()) {
+            PendingResponse pending = exec(cmd, interrupt);
+            if (pending == null) {
+                return ExecResult.INTERRUPTED;
+            } else if (!verify(cmd, pending)) {
+                if (isRefused(cmd, pending)) {
+                    DebugLog.d(Processor.class.getSimpleName(), "Local identifier definition refused on "
+                            + cmd.getRequestCommand() + ", reading the static ones.");
+                    Processor.dynamicLocalIdSupported = false;
+                }
+                return ExecResult.FAILURE;
             }
+        }
+        return ExecResult.SUCCESS;
+    }
 
-            @Override
-            public void onIncompleteResponse(String response) {
-                Log.d("Processor", "onImcompleteResponse()");
+    /**
+     * Set the fastest timing accepted by the ECU and adapt the adapter timeout to the measured
+     * round-trip time. The defaults are restored if the ECU doesn't respond reliably with it.
+     *
+     * If the ECU refuses the timing service only the adapter timing is adjusted, other failures -
+     * e.g. a lost response - are retried with the next session.
+     */
+    private static void adjustTiming(AtomicBoolean interrupt) {
+        if (SessionTiming.isEcuTimingSupported()
+                && adjustEcuTiming(interrupt) != ExecResult.SUCCESS) {
+            return;
+        }
+        if (execAndVerify(SessionTiming.ADAPTIVE_TIMING, interrupt) != ExecResult.SUCCESS) {
+            restoreTiming(interrupt, false);
+            return;
+        }
 
-                success.set(false);
-                executed.set(true);
+        long maxRoundTrip = 0;
+        for (int i = 0; i < SessionTiming.PROBES; i++) {
+            long start = System.nanoTime();
+            ExecResult result = execAndVerify(DiagSession.TESTER_PRESENT, interrupt);
+            if (result == ExecResult.INTERRUPTED) {
+                return;
+            } else if (result == ExecResult.FAILURE) {
+                restoreTiming(interrupt, false);
+                return;
             }
-        });
+            maxRoundTrip = Math.max(maxRoundTrip, System.nanoTime() - start);
+        }
 
-        if (interrupt != null && interrupt.get()) {
-            return ExecResult.INTERRUPTED;
+        Command timeout = SessionTiming.createTimeoutCommand(maxRoundTrip);
+        if (execAndVerify(timeout, interrupt) != ExecResult.SUCCESS) {
+            restoreTiming(interrupt, false);
+            return;
         }
+        SessionTiming.adjusted();
+        DebugLog.d(Processor.class.getSimpleName(), "Session timing adjusted, round-trip "
+                + maxRoundTrip / 1000000L + " ms, " + timeout.getRequestCommand());
+    }
 
-        Service.write(cmd);
+    /**
+     * Set the fastest timing accepted by the ECU with the timing service.
+     * @return SUCCESS to go on with the adapter timing - also if the ECU refuses the service,
+     *         FAILURE or INTERRUPTED to give up the adjustment for this session.
+     */
+    private static ExecResult adjustEcuTiming(AtomicBoolean interrupt) {
+        PendingResponse limits = exec(SessionTiming.READ_LIMITS, interrupt);
+        if (limits == null) {
+            return ExecResult.INTERRUPTED;
+        }
+        if (!verify(SessionTiming.READ_LIMITS, limits)) {
+            if (isRefused(SessionTiming.READ_LIMITS, limits)) {
+                DebugLog.d(Processor.class.getSimpleName(), "Timing parameters are not supported.");
+                SessionTiming.ecuTimingUnsupported();
+                return ExecResult.SUCCESS;
+            }
+            return ExecResult.FAILURE;
+        }
+        Command set = SessionTiming.createSetCommand(limits.getResponse());
+        if (set == null) {
+            DebugLog.d(Processor.class.getSimpleName(), "Timing parameter limits are not supported.");
+            SessionTiming.ecuTimingUnsupported();
+            return ExecResult.SUCCESS;
+        }
 
-        while (executed.get() == false) {
-            if (interrupt != null && interrupt.get()) {
-                return ExecResult.INTERRUPTED;
+        PendingResponse setResponse = exec(set, interrupt);
+        if (setResponse == null) {
+            return ExecResult.INTERRUPTED;
+        } else if (!verify(set, setResponse)) {
+            if (isRefused(set, setResponse)) {
+                // The refused timing is not applied, the defaults are still active.
+                DebugLog.d(Processor.class.getSimpleName(), "Timing parameters are refused.");
+                SessionTiming.ecuTimingUnsupported();
+                return ExecResult.SUCCESS;
             }
-            SystemClock.sleep(10);
+            restoreTiming(interrupt, false);
+            return ExecResult.FAILURE;
+        }
+        return ExecResult.SUCCESS;
+    }
+
+    /**
+     * Restore the default session timing. If the ECU doesn't respond the session is
+     * re-initialized.
+     * @param disable true to not adjust the timing anymore on this connection, because the
+     *                session gets unstable with it. Otherwise it is adjusted again with the
+     *                next session.
+     */
+    private static void restoreTiming(AtomicBoolean interrupt, boolean disable) {
+        if (disable) {
+            SessionTiming.disable();
+        } else {
+            SessionTiming.invalidate();
+        }
+        if ((SessionTiming.isEcuTimingSupported()
+                        && execAndVerify(SessionTiming.SET_DEFAULTS, interrupt) != ExecResult.SUCCESS)
+                || execAndVerify(SessionTiming.DEFAULT_ADAPTIVE_TIMING, interrupt) != ExecResult.SUCCESS
+                || execAndVerify(SessionTiming.DEFAULT_TIMEOUT, interrupt) != ExecResult.SUCCESS) {
+            DiagSession.invalidate();
+        }
+    }
+
+    /**
+     * Execute the command and block until its response is received. The waiting thread is woken
+     * up as soon as the response is delivered or the thread is interrupted.
+     * @return the received response or null if interrupted.
+     */
+    private static PendingResponse exec(Command cmd, AtomicBoolean interrupt) {
+        if ((interrupt != null && interrupt.get()) || Thread.currentThread().isInterrupted()) {
+            return null;
         }
 
-        return (success.get()) ? ExecResult.SUCCESS : ExecResult.FAILURE;
+        PendingResponse pending = Service.submit(cmd);
+        try {
+            pending.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return pending;
+    }
+
+    /**
+     * Execute the command, block until its response is received and verify it.
+     */
+    private static ExecResult execAndVerify(final Command cmd, AtomicBoolean interrupt) {
+        PendingResponse pending = exec(cmd, interrupt);
+        if (pending == null) {
+            return ExecResult.INTERRUPTED;
+        }
+
+        return verify(cmd, pending) ? ExecResult.SUCCESS : ExecResult.FAILURE;
+    }
+
+    /**
+     * @return true iff the response is complete and is the expected one.
+     */
+    private static boolean verify(Command cmd, PendingResponse pending) {
+        return pending.isComplete() && cmd.verifyResponse(pending.getResponse());
+    }
+
+    /**
+     * @return true iff the ECU refused the command with a negative response. Unlike a lost or
+     *         incomplete response, this doesn't change when the command is retried.
+     */
+    private static boolean isRefused(Command cmd, PendingResponse pending) {
+        return pending.isComplete()
+                && Utils.isNegativeResponse(cmd.getRequestCommand(), pending.getResponse());
     }
 }
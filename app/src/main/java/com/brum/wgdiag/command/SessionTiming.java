@@ -0,0 +1,157 @@
+package com.brum.wgdiag.command;
+
+import com.brum.wgdiag.command.impl.DiagUtils;
+import com.brum.wgdiag.command.impl.Utils;
+
+import java.util.Locale;
+
+/**
+ * Tracks the timing of the diagnostic session established by the package init commands.
+ *
+ * The session starts with the default KWP2000 P2/P3 timings and the default adapter timeout, which
+ * are conservative. Once the session is established the fastest timing accepted by the ECU is
+ * read and set with the KWP2000 access timing parameters service (83), the adapter is switched to
+ * the aggressive adaptive timing and its timeout is set from the measured round-trip time.
+ *
+ * If the ECU refuses the timing service with a negative response, only the adapter timing is
+ * adjusted for the rest of the connection, see {@link #ecuTimingUnsupported()}. The adapter
+ * timeout bounds how long a lost response is waited for, so it is set even if the ECU keeps its
+ * default timing.
+ *
+ * If the adjustment fails, e.g. a probe times out, the defaults are restored and the adjustment
+ * is tried again with the next session. It is not tried again on the connection only if the ECU
+ * gets unstable with the adjusted timing, see {@link #disable()}. A new connection, possibly to
+ * another vehicle, starts over, see {@link #reset()}.
+ */
+class SessionTiming {
+    /**
+     * Read the limits of the timing parameters (timing parameter identifier 00).
+     */
+    static final Command READ_LIMITS = Utils.createCommand("83 00", "C3 00", 1000);
+
+    /**
+     * Set the timing parameters to their default values (timing parameter identifier 01). Not to
+     * be confused with 02, which only reads the currently active ones.
+     */
+    static final Command SET_DEFAULTS = Utils.createCommand("83 01", "C3 01", 1000);
+
+    static final Command ADAPTIVE_TIMING = Utils.createCommand("ATAT2", "OK");
+    static final Command DEFAULT_ADAPTIVE_TIMING = Utils.createCommand("ATAT1", "OK");
+    static final Command DEFAULT_TIMEOUT = Utils.createCommand("ATST32", "OK");
+
+    /**
+     * Number of tester present requests used to measure the round-trip time.
+     */
+    static final int PROBES = 8;
+
+    /**
+     * Number of consecutive timeouts after which the session is considered unstable.
+     */
+    static final int UNSTABLE_TIMEOUTS = 3;
+
+    // The adapter timeout is set in 4 ms units, between these bounds. The upper one is the default.
+    private static final long MIN_TIMEOUT_MILLIS = 32;
+    private static final long MAX_TIMEOUT_MILLIS = 200;
+    private static final long TIMEOUT_UNIT_MILLIS = 4;
+
+    // Timing parameter bytes - P2min, P2max, P3min, P3max and P4min.
+    private static final int PARAMETERS = 5;
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean adjusted = false;
+    private static volatile boolean ecuTimingSupported = true;
+
+    /**
+     * @return true iff the timing adjustment should be tried for a new session.
+     */
+    static boolean isEnabled() {
+        return SessionTiming.enabled;
+    }
+
+    /**
+     * @return true iff the ECU timing should be set with the timing service, otherwise only the
+     *         adapter timing is adjusted.
+     */
+    static boolean isEcuTimingSupported() {
+        return SessionTiming.ecuTimingSupported;
+    }
+
+    /**
+     * @return true iff the timing of the current session is adjusted.
+     */
+    static boolean isAdjusted() {
+        return SessionTiming.adjusted;
+    }
+
+    /**
+     * Record that the timing of the current session was adjusted.
+     */
+    static void adjusted() {
+        SessionTiming.adjusted = true;
+    }
+
+    /**
+     * Record that the ECU refuses the timing service. Only the adapter timing is adjusted on this
+     * connection.
+     */
+    static void ecuTimingUnsupported() {
+        SessionTiming.ecuTimingSupported = false;
+    }
+
+    /**
+     * Record that the timing can't be adjusted, because the session gets unstable with it. The
+     * adjustment is not tried again on this connection.
+     */
+    static void disable() {
+        SessionTiming.enabled = false;
+        SessionTiming.adjusted = false;
+    }
+
+    /**
+     * Record that the session is lost, a new session starts with the default timing.
+     */
+    static void invalidate() {
+        SessionTiming.adjusted = false;
+    }
+
+    /**
+     * Record that a new connection is established. The adjustment is tried again, even if it was
+     * disabled for the previous connection.
+     */
+    static void reset() {
+        SessionTiming.enabled = true;
+        SessionTiming.adjusted = false;
+        SessionTiming.ecuTimingSupported = true;
+    }
+
+    /**
+     * Create the command setting the fastest timing accepted by the ECU.
+     * @param limits the response of {@link #READ_LIMITS}, e.g. "C3 00 00 01 00 14 00".
+     * @return the set command, e.g. "83 03 00 01 00 14 00", or null if the limits can't be parsed.
+     */
+    static Command createSetCommand(String limits) {
+        byte[] data = new byte[limits.length() / 2 + 1];
+        int length = DiagUtils.tokenize(limits, data);
+        if (length < 2 + PARAMETERS) {
+            return null;
+        }
+
+        StringBuilder request = new StringBuilder("83 03");
+        for (int i = 2; i < 2 + PARAMETERS; i++) {
+            request.append(String.format(Locale.US, " %02X", data[i] & 0xFF));
+        }
+        return Utils.createCommand(request.toString(), "C3 03", 1000);
+    }
+
+    /**
+     * Create the command setting the adapter timeout to twice the measured round-trip time.
+     * @param maxRoundTripNanos the longest round-trip time of the probes.
+     * @return the timeout command, e.g. "ATST0C".
+     */
+    static Command createTimeoutCommand(long maxRoundTripNanos) {
+        long timeout = 2 * maxRoundTripNanos / 1000000L;
+        timeout = Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, timeout));
+        long units = (timeout + TIMEOUT_UNIT_MILLIS - 1) / TIMEOUT_UNIT_MILLIS;
+        return Utils.createCommand(String.format(Locale.US, "ATST%02X", units), "OK");
+    }
+}
@@ -0,0 +1,22 @@
+package com.brum.wgdiag.command.diag;
+
+import java.util.Iterator;
+
+/**
+ * Endless diag command iterator that interleaves the commands of a package so the target refresh
+ * rates of their fields are met.
+ */
+public interface CommandScheduler extends Iterator<DiagCommand> {
+
+    /**
+     * Get the ratio of the requested command rate to the command rate the link achieves, measured
+     * over the last complete window.
+     * @return the load, 0 if not measured yet.
+     */
+    double getLoad();
+
+    /**
+     * @return true iff the requested refresh rates exceed what the link can carry.
+     */
+    boolean isOverloaded();
+}
@@ -0,0 +1,112 @@
+package com.brum.wgdiag.command.diag;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * All field values decoded from a single diag command response.
+ *
+ * The frame is reused for the next response of the same command. Data handlers should not keep
+ * references to it after {@link DataHandler#handle(DataFrame)} returns.
+ */
+public class DataFrame {
+    private static final String NOT_AVAILABLE = "NA";
+
+    private final DiagCommand command;
+    private final List<Field> fields;
+    private final double[] values;
+    private DiagResponse response = null;
+    private long timestamp = 0;
+
+    public DataFrame(DiagCommand command) {
+        this.command = command;
+        this.fields = command.getDiagFields();
+        this.values = new double[this.fields.size()];
+    }
+
+    /**
+     * Fill the frame with the values from the specified response.
+     * @param timestamp the response time in milliseconds.
+     * @param response the parsed response.
+     */
+    public void set(long timestamp, DiagResponse response) {
+        this.timestamp = timestamp;
+        this.response = response;
+        this.command.parseResponseValues(response, this.values);
+    }
+
+    /**
+     * Mark the frame as incomplete. Used when the command has timed out.
+     * @param timestamp the time in milliseconds.
+     */
+    public void setIncomplete(long timestamp) {
+        this.timestamp = timestamp;
+        this.response = null;
+        for (int i = 0; i < this.values.length; i++) {
+            this.values[i] = 0;
+        }
+    }
+
+    /**
+     * Get the request of the command that produced this frame, e.g. "21 12".
+     */
+    public String getCommandId() {
+        return this.command.getRequestCommand();
+    }
+
+    /**
+     * Get the response time in milliseconds, see {@link com.brum.wgdiag.util.Clock#elapsedMillis()}.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return false iff the command has timed out and there are no values.
+     */
+    public boolean isComplete() {
+        return this.response != null;
+    }
+
+    /**
+     * Get the number of fields in the frame.
+     */
+    public int size() {
+        return this.values.length;
+    }
+
+    public Field getField(int index) {
+        return this.fields.get(index);
+    }
+
+    public String getKey(int index) {
+        return this.fields.get(index).getKey();
+    }
+
+    /**
+     * Get the field value. Doesn't allocate memory.
+     */
+    public double getValue(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * Get the field value as decimal.
+     */
+    public BigDecimal getDecimal(int index) {
+        if (this.response == null) {
+            return BigDecimal.ZERO;
+        }
+        return this.fields.get(index).toDecimal(this.response);
+    }
+
+    /**
+     * Get the field value as string (including the units applicable for it).
+     */
+    public String getText(int index) {
+        if (this.response == null) {
+            return NOT_AVAILABLE;
+        }
+        return this.fields.get(index).toString(this.response);
+    }
+}
@@ -1,27 +1,17 @@
 package com.brum.wgdiag.command.diag;
 
-import java.math.BigDecimal;
-
 /**
- * Handler for diag data values. Called every time a value is being decoded.
+ * Handler for diag data values. Called every time a response is being decoded.
  */
 public interface DataHandler {
 
     /**
-     * Called when a value has been decoded.
-     *
-     * @param key diagnostic value key
-     * @param value diagnostic value
-     */
-    void handle(String key, String value);
-
-    /**
-     * Called when a value has been decoded.
+     * Called when a response has been decoded. The frame contains the values of all fields of the
+     * command and is valid only during this call.
      *
-     * @param key diagnostic value key
-     * @param value diagnostic value
+     * @param frame the decoded values.
      */
-    void handle(String key, BigDecimal value);
+    void handle(DataFrame frame);
 
     /**
      * Called every time a diagnostic data package is being switched.
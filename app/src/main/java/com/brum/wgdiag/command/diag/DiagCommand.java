@@ -8,6 +8,13 @@ import java.util.Map;
  * Interface for diagnostic commands.
  */
 public interface DiagCommand extends com.brum.wgdiag.command.Command {
+    /**
+     * Parse the response once. All fields of the command can then be read from the result.
+     * @param response the response string.
+     * @return the parsed response.
+     */
+    DiagResponse parse(String response);
+
     /**
      * Parse response and map it to key-value pairs.
      * @param response the response to be parsed and mapped.
@@ -15,6 +22,13 @@ public interface DiagCommand extends com.brum.wgdiag.command.Command {
      */
     Map<String, String> parseResponse(String response);
 
+    /**
+     * Map parsed response to key-value pairs.
+     * @param response the parsed response.
+     * @return Map of key-value pairs that were extracted from the command response.
+     */
+    Map<String, String> parseResponse(DiagResponse response);
+
     /**
      * Parse response and map it to key-value pairs.
      * @param response the response to be parsed and mapped.
@@ -22,6 +36,20 @@ public interface DiagCommand extends com.brum.wgdiag.command.Command {
      */
     Map<String, BigDecimal> parseResponseValues(String response);
 
+    /**
+     * Map parsed response to key-value pairs.
+     * @param response the parsed response.
+     * @return Map of key-value pairs that were extracted from the command response.
+     */
+    Map<String, BigDecimal> parseResponseValues(DiagResponse response);
+
+    /**
+     * Read the field values from the parsed response without allocating memory.
+     * @param response the parsed response.
+     * @param values destination for the field values, in the order of {@link #getDiagFields()}.
+     */
+    void parseResponseValues(DiagResponse response, double[] values);
+
     /**
      * Get keys for all fields that can be extracted from by command.
      * @return
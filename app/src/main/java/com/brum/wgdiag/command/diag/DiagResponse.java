@@ -0,0 +1,45 @@
+package com.brum.wgdiag.command.diag;
+
+import com.brum.wgdiag.command.impl.DiagUtils;
+
+/**
+ * Parsed diagnostic command response. The hex encoded response is decoded once and all fields
+ * read their values from the decoded bytes.
+ */
+public class DiagResponse {
+    private final String text;
+    private final byte[] data;
+    private final int length;
+
+    /**
+     * Parse the response string.
+     * @param text the response, e.g. "61 12 0B 3E".
+     */
+    public DiagResponse(String text) {
+        this.text = text;
+        this.data = new byte[text.length() / 2 + 1];
+        this.length = DiagUtils.tokenize(text, this.data);
+    }
+
+    /**
+     * Get the response as received from the adapter.
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * Get the decoded response bytes. Only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    /**
+     * Get the number of decoded bytes.
+     * @return number of bytes or -1 if the response is not hex encoded.
+     */
+    public int getLength() {
+        return this.length;
+    }
+}
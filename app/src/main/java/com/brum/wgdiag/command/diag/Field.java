@@ -18,18 +18,54 @@ public interface Field {
      */
     String getDescription();
 
+    /**
+     * Position of the field value in the response, counted from the response service id, e.g. 2
+     * for the first data byte of "61 12 0B 3E".
+     * @return the position or -1 if the value is not at fixed position, e.g. text field.
+     */
+    int getPosition();
+
+    /**
+     * Number of the field value bytes.
+     * @return the length or 0 if the value is not at fixed position.
+     */
+    int getLength();
+
+    /**
+     * Create the same field read from another position, e.g. from a dynamically defined local
+     * identifier.
+     * @param position the new position, see {@link #getPosition()}.
+     * @return the relocated field.
+     * @throws UnsupportedOperationException if the value is not at fixed position.
+     */
+    Field relocate(int position);
+
     /**
      * Parse field value as big decimal.
      * @param response
      * @return decimal representing the field value.
      */
-    BigDecimal toDecimal(String response);
+    BigDecimal toDecimal(DiagResponse response);
+
+    /**
+     * Parse field value as double. Doesn't allocate memory for hex encoded responses.
+     * @param response
+     * @return the field value or NaN if it can't be parsed from the response.
+     */
+    double toDouble(DiagResponse response);
 
     /**
      * Parse field value as string (including the units applicable for it).
      * @param response
      * @return string representation of the field value.
      */
-    String toString(String response);
-}
+    String toString(DiagResponse response);
 
+    /**
+     * Format the field value, including the units applicable for it. Allows to decode the values
+     * with {@link #toDouble(DiagResponse)} for each response and to format only those displayed.
+     * @param value the field value, see {@link #toDouble(DiagResponse)}.
+     * @return string representation of the field value.
+     */
+    String format(double value);
+}
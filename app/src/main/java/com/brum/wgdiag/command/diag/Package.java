@@ -4,6 +4,7 @@ import com.brum.wgdiag.command.Command;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Diagnostic command package. Provides command iterator that will return all commands that should
@@ -21,6 +22,22 @@ public interface Package {
      */
     Iterator<DiagCommand> getCommandIterator();
 
+    /**
+     * Create scheduler returning the commands in order that meets the fields refresh rates.
+     */
+    CommandScheduler createScheduler();
+
+    /**
+     * Target refresh rates of the fields in Hz, by field key. Fields that are not present use the
+     * default rate.
+     */
+    Map<String, Double> getRefreshRates();
+
+    /**
+     * Get all diag commands executed by this package.
+     */
+    List<DiagCommand> getCommands();
+
     /**
      * Package name.
      */
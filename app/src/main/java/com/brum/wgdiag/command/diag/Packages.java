@@ -9,15 +9,26 @@ import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Diagnostic command packages.
  */
 public class Packages {
 
+    /**
+     * The adapter reset is followed by the compact session profile - echo, linefeeds, spaces and
+     * headers off. Only the response data is transmitted then, which is about a third of the
+     * default "61 12 0B 3E ..." output.
+     */
     private static final List<Command> INIT_COMMANDS = Arrays.asList(
         Utils.createCommand("ATZ", "ELM327", 7500),
+        Utils.createCommand("ATE0", "OK"),
+        Utils.createCommand("ATL0", "OK"),
+        Utils.createCommand("ATS0", "OK"),
+        Utils.createCommand("ATH0", "OK"),
         Utils.createCommand("ATSP5", "OK"),
         Utils.createCommand("ATWM8115F13E", "OK"),
         Utils.createCommand("ATSH8115F1", "OK"),
@@ -28,6 +39,56 @@ public class Packages {
         Utils.createCommand("31 25 00", "71 25")
     );
 
+    /**
+     * Init commands for the ECUs diagnosed over CAN (ISO 15765-4, 11 bit identifiers, 500 kbit/s).
+     * There is no bus init and no wakeup messages over CAN, the headers are on so the ISO-TP
+     * frames of the responses can be reassembled. The physical request (7E0) and response (7E8)
+     * identifiers are fixed, the flow control is send by the adapter without separation time.
+     * Without the wakeup messages the session isn't kept alive, so it is always re-initialized.
+     */
+    public static final List<Command> CAN_INIT_COMMANDS = Arrays.asList(
+        Utils.createCommand("ATZ", "ELM327", 7500),
+        Utils.createCommand("ATE0", "OK"),
+        Utils.createCommand("ATL0", "OK"),
+        Utils.createCommand("ATS0", "OK"),
+        Utils.createCommand("ATH1", "OK"),
+        Utils.createCommand("ATSP6", "OK"),
+        Utils.createCommand("ATCAF1", "OK"),
+        Utils.createCommand("ATSH7E0", "OK"),
+        Utils.createCommand("ATCRA7E8", "OK"),
+        Utils.createCommand("ATFCSH7E0", "OK"),
+        Utils.createCommand("ATFCSD300000", "OK"),
+        Utils.createCommand("ATFCSM1", "OK"),
+        Utils.createCommand("27 01", "67 01"),
+        Utils.createCommand("27 02 CD 46", "7F 27"),
+        Utils.createCommand("31 25 00", "71 25")
+    );
+
+    /**
+     * Target refresh rates of the fields in Hz. Fast changing signals are refreshed more often than
+     * the slow ones, like the temperatures.
+     */
+    private static final Map<String, Double> REFRESH_RATES = new HashMap<>();
+    static {
+        REFRESH_RATES.put("rpm", 10.0);
+        REFRESH_RATES.put("iq", 10.0);
+        REFRESH_RATES.put("maf_actual", 10.0);
+        REFRESH_RATES.put("maf_spec", 5.0);
+        REFRESH_RATES.put("rail_actual", 10.0);
+        REFRESH_RATES.put("rail_spec", 5.0);
+        REFRESH_RATES.put("map_actual", 10.0);
+        REFRESH_RATES.put("map_spec", 5.0);
+        REFRESH_RATES.put("tps", 5.0);
+        REFRESH_RATES.put("inj1_cor", 2.0);
+        REFRESH_RATES.put("inj2_cor", 2.0);
+        REFRESH_RATES.put("inj3_cor", 2.0);
+        REFRESH_RATES.put("inj4_cor", 2.0);
+        REFRESH_RATES.put("inj5_cor", 2.0);
+        REFRESH_RATES.put("aap???", 1.0);
+        REFRESH_RATES.put("coolant", 0.5);
+        REFRESH_RATES.put("iat", 0.5);
+    }
+
     static Package MAF_PACKAGE = new PackageImpl(
         "MAF",
         "MAF readings - actual and specified",
@@ -40,7 +101,8 @@ public class Packages {
                 Arrays.asList(
                     DiagUtils.createField(14, new DecimalFormat("#"), "maf_actual", "MAF actual"),
                     DiagUtils.createField(16, new DecimalFormat("#"), "maf_spec", "MAF specified")
-    ))));
+    ))),
+        REFRESH_RATES);
 
     static Package RAIL_PRESSURE_PACKAGE = new PackageImpl(
         "Rail pressure",
@@ -60,7 +122,8 @@ public class Packages {
                 1000,
                 Arrays.asList(
                     DiagUtils.createField( 18, 2, new BigDecimal("0"), new BigDecimal("10"), new DecimalFormat("####.# bar"), "rail_spec", "Rail pressure specified")
-    ))));
+    ))),
+        REFRESH_RATES);
 
     static Package MAP_PACKAGE = new PackageImpl(
         "MAP",
@@ -80,7 +143,8 @@ public class Packages {
                 1000,
                 Arrays.asList(
                     DiagUtils.createField(16, 2, new BigDecimal("0"), new BigDecimal("1"), new DecimalFormat("#### mbar"), "map_spec", "MAP specified")
-    ))));
+    ))),
+        REFRESH_RATES);
 
     static Package INJECTOR_CORRECTION_PACKAGE = new PackageImpl(
         "Injector corrections",
@@ -99,7 +163,8 @@ public class Packages {
                     DiagUtils.createField(22, 2, new BigDecimal("0"), new BigDecimal("100"), new DecimalFormat("+#.##;-#.##"), "inj3_cor", "Injector 3 correction"),
                     DiagUtils.createField(24, 2, new BigDecimal("0"), new BigDecimal("100"), new DecimalFormat("+#.##;-#.##"), "inj4_cor", "Injector 4 correction"),
                     DiagUtils.createField(26, 2, new BigDecimal("0"), new BigDecimal("100"), new DecimalFormat("+#.##;-#.##"), "inj5_cor", "Injector 5 correction")
-    ))));
+    ))),
+        REFRESH_RATES);
 
     static Package MISC_PACKAGE = new PackageImpl(
         "Misc data",
@@ -119,17 +184,44 @@ public class Packages {
                     1000,
                     Arrays.asList(DiagUtils.createField(2, 2, new BigDecimal("0"), new BigDecimal("1"), new DecimalFormat("#### rpm"), "rpm", "RPM"),
                             DiagUtils.createField(4, 2, new BigDecimal("0"), new BigDecimal("100"), new DecimalFormat("##.# mg"), "iq", "IQ"))
-    )));
+    )),
+        REFRESH_RATES);
 
     private static Package POWER_SYPPLY_PACKAGE = new PackageImpl(
             "Battery voltage",
             "Battery voltage",
             Collections.<Command>emptyList(),
             Arrays.asList(
-                    DiagUtils.createCommand("ATRV", null, 1000, Arrays.asList(DiagUtils.createTextField("Voltage", "Battery voltage")))
+                    DiagUtils.createCommand("ATRV", null, 1000, 0, Arrays.asList(DiagUtils.createTextField("Voltage", "Battery voltage")))
                     )
     );
 
+    /**
+     * Get the package executed over CAN instead of the K-line. The diag requests and fields are
+     * the same, only the session is established by {@link #CAN_INIT_COMMANDS}.
+     * @param pkg the package.
+     * @return the CAN package, or the package itself if it doesn't need a session, e.g. the
+     *         battery voltage.
+     */
+    public static Package overCan(Package pkg) {
+        if (pkg.getInitCommands().isEmpty()) {
+            return pkg;
+        }
+        return new PackageImpl(
+                pkg.getName(),
+                pkg.getDescription(),
+                CAN_INIT_COMMANDS,
+                pkg.getCommands(),
+                pkg.getRefreshRates());
+    }
+
+    /**
+     * @return true iff the package session is established over CAN.
+     */
+    public static boolean isOverCan(Package pkg) {
+        return pkg.getInitCommands() == CAN_INIT_COMMANDS;
+    }
+
     public static List<Package> PACKAGES = Arrays.asList(
             INJECTOR_CORRECTION_PACKAGE,
             RAIL_PRESSURE_PACKAGE,
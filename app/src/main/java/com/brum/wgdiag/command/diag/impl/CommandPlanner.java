@@ -0,0 +1,158 @@
+package com.brum.wgdiag.command.diag.impl;
+
+import com.brum.wgdiag.command.Command;
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Field;
+import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.impl.DiagUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the minimal set of diag commands for reading a set of fields. Fields provided by the same
+ * request (e.g. "21 12") are merged in a single command, even if they come from different packages.
+ * This way each request is send once per cycle and all fields are decoded from the shared response.
+ */
+public class CommandPlanner {
+
+    /**
+     * Combine the specified packages in a single package, reading the fields of all of them with
+     * the planned commands. So the bus load is the union of the package requests.
+     * @param packages the packages, at least one.
+     * @return the combined package, or the package itself if there is only one.
+     */
+    public static Package combine(List<Package> packages) {
+        if (packages.size() == 1) {
+            return packages.get(0);
+        }
+
+        StringBuilder name = new StringBuilder();
+        StringBuilder description = new StringBuilder();
+        List<Command> initCommands = new ArrayList<>();
+        Set<String> initRequests = new HashSet<>();
+        List<Command> sharedInitCommands = null;
+        boolean shared = true;
+        Map<String, Double> refreshRates = new HashMap<>();
+
+        for (Package pkg : packages) {
+            if (name.length() > 0) {
+                name.append(" + ");
+                description.append(' ');
+            }
+            name.append(pkg.getName());
+            description.append(pkg.getDescription());
+
+            if (!pkg.getInitCommands().isEmpty()) {
+                if (sharedInitCommands == null) {
+                    sharedInitCommands = pkg.getInitCommands();
+                } else if (sharedInitCommands != pkg.getInitCommands()) {
+                    shared = false;
+                }
+            }
+            for (Command cmd : pkg.getInitCommands()) {
+                if (initRequests.add(cmd.getRequestCommand())) {
+                    initCommands.add(cmd);
+                }
+            }
+
+            for (Map.Entry<String, Double> rate : pkg.getRefreshRates().entrySet()) {
+                Double current = refreshRates.get(rate.getKey());
+                if (current == null || current < rate.getValue()) {
+                    refreshRates.put(rate.getKey(), rate.getValue());
+                }
+            }
+        }
+
+        if (shared && sharedInitCommands != null) {
+            // Keep the same list, so the established diag session is recognized.
+            initCommands = sharedInitCommands;
+        }
+
+        return new PackageImpl(
+                name.toString(),
+                description.toString(),
+                initCommands,
+                plan(packages),
+                refreshRates);
+    }
+
+    /**
+     * Plan the commands for reading all fields of the specified packages.
+     * @param packages the packages.
+     * @return list of commands, one per distinct request.
+     */
+    public static List<DiagCommand> plan(Collection<Package> packages) {
+        return plan(packages, null);
+    }
+
+    /**
+     * Plan the commands for reading the specified fields.
+     * @param packages the packages providing the fields.
+     * @param fields the requested fields. All package fields are read if null.
+     * @return list of commands, one per distinct request. Commands that don't provide any of the
+     *         requested fields are omitted.
+     */
+    public static List<DiagCommand> plan(Collection<Package> packages, Collection<Field> fields) {
+        Set<String> requestedKeys = null;
+        if (fields != null) {
+            requestedKeys = new HashSet<>();
+            for (Field field : fields) {
+                requestedKeys.add(field.getKey());
+            }
+        }
+
+        Map<String, DiagCommand> baseCommands = new LinkedHashMap<>();
+        Map<String, List<Field>> commandFields = new LinkedHashMap<>();
+        Set<String> plannedKeys = new HashSet<>();
+        Map<String, Long> timeouts = new LinkedHashMap<>();
+
+        for (Package pkg : packages) {
+            for (DiagCommand cmd : pkg.getCommands()) {
+                String request = cmd.getRequestCommand();
+                for (Field field : cmd.getDiagFields()) {
+                    if (requestedKeys != null && !requestedKeys.contains(field.getKey())) {
+                        continue;
+                    }
+                    if (plannedKeys.contains(field.getKey())) {
+                        continue;
+                    }
+                    plannedKeys.add(field.getKey());
+
+                    if (!commandFields.containsKey(request)) {
+                        baseCommands.put(request, cmd);
+                        commandFields.put(request, new ArrayList<Field>());
+                        timeouts.put(request, cmd.getTimeoutMillis());
+                    }
+                    commandFields.get(request).add(field);
+                    timeouts.put(request, Math.max(timeouts.get(request), cmd.getTimeoutMillis()));
+                }
+            }
+        }
+
+        List<DiagCommand> result = new ArrayList<>();
+        for (String request : commandFields.keySet()) {
+            DiagCommand base = baseCommands.get(request);
+            List<Field> planned = commandFields.get(request);
+            if (planned.equals(base.getDiagFields())
+                    && timeouts.get(request) == base.getTimeoutMillis()) {
+                // Nothing merged or removed, reuse the original command.
+                result.add(base);
+            } else {
+                result.add(DiagUtils.createCommand(
+                        request,
+                        base.getResponseHeader(),
+                        timeouts.get(request),
+                        base.getExpectedFrames(),
+                        planned));
+            }
+        }
+        return result;
+    }
+}
@@ -1,45 +1,40 @@
 package com.brum.wgdiag.command.diag.impl;
 
+import com.brum.wgdiag.command.diag.DataFrame;
 import com.brum.wgdiag.command.diag.DataHandler;
 import com.brum.wgdiag.command.diag.Package;
 
-import java.math.BigDecimal;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Orchestrate a list of data handlers.
  */
 public class CompositeDataHandler implements DataHandler {
-    private HashMap<String, DataHandler> handlers = new HashMap<>();
+    private Map<String, DataHandler> handlers = new LinkedHashMap<>();
+    private volatile DataHandler[] handlersArray = new DataHandler[0];
 
-    public void registerHandler(String handlerId, DataHandler handler) {
+    public synchronized void registerHandler(String handlerId, DataHandler handler) {
         this.handlers.put(handlerId, handler);
+        this.handlersArray = this.handlers.values().toArray(new DataHandler[this.handlers.size()]);
     }
 
-    public void unregisterHandler(String handlerId) {
-        handlers.remove(handlerId);
+    public synchronized void unregisterHandler(String handlerId) {
+        this.handlers.remove(handlerId);
+        this.handlersArray = this.handlers.values().toArray(new DataHandler[this.handlers.size()]);
     }
 
     @Override
-    public void handle(String key, String value) {
-        Collection<DataHandler> handlers = this.handlers.values();
-        for (DataHandler handler : handlers) {
-            handler.handle(key, value);
-        }
-    }
-
-    @Override
-    public void handle(String key, BigDecimal value) {
-        Collection<DataHandler> handlers = this.handlers.values();
-        for (DataHandler handler : handlers) {
-            handler.handle(key, value);
+    public void handle(DataFrame frame) {
+        DataHandler[] handlers = this.handlersArray;
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].handle(frame);
         }
     }
 
     @Override
     public void switchPackage(Package pkg) {
-        Collection<DataHandler> handlers = this.handlers.values();
+        DataHandler[] handlers = this.handlersArray;
         for (DataHandler handler : handlers) {
             handler.switchPackage(pkg);
         }
@@ -0,0 +1,200 @@
+package com.brum.wgdiag.command.diag.impl;
+
+import com.brum.wgdiag.command.Command;
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Field;
+import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.impl.DiagUtils;
+import com.brum.wgdiag.command.impl.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Dynamically defined local identifier reading exactly the fields of a package.
+ *
+ * The static local identifiers (e.g. "21 12") return whole blocks of 30+ bytes, while the packages
+ * use only a few of them. The KWP2000 dynamically define local identifier service (2C) composes a
+ * new local identifier from byte ranges of the static ones, so a single "21 F0" request returns
+ * only the field bytes of all package commands.
+ *
+ * The ranges are defined one per request, because the adapter accepts at most 7 data bytes per
+ * request on the K-line. The packages read over CAN are not defined: the service is only used with
+ * the K-line ECUs, and ISO-TP already carries the long responses in a few frames.
+ *
+ * All fields are read with the single request, so the per-field refresh rates no longer apply:
+ * the request is scheduled at the highest rate of the fields, see {@link RateScheduler}, and the
+ * slow fields are refreshed at that rate too. This costs their few bytes in each response, which
+ * is still far less than the whole static blocks and the round trips of the separate requests.
+ */
+public class DynamicLocalId {
+    /**
+     * The local identifier being defined, the first of the range reserved for the dynamically
+     * defined ones.
+     */
+    public static final int LOCAL_ID = 0xF0;
+
+    private static final int READ_SERVICE = 0x21;
+    private static final int DEFINE_BY_LOCAL_ID = 0x01;
+    private static final int CLEAR = 0x04;
+    private static final int MAX_RANGE_LENGTH = 0xFF;
+
+    private final Command clearCommand;
+    private final List<Command> defineCommands;
+    private final Package pkg;
+
+    private DynamicLocalId(Command clearCommand, List<Command> defineCommands, Package pkg) {
+        this.clearCommand = clearCommand;
+        this.defineCommands = defineCommands;
+        this.pkg = pkg;
+    }
+
+    /**
+     * Byte range of a static local identifier response, holding fields of the command.
+     */
+    private static class Range {
+        final DiagCommand command;
+        final int localId;
+        final int start;
+        int end;
+
+        Range(DiagCommand command, int localId, int start, int end) {
+            this.command = command;
+            this.localId = localId;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Plan the dynamic local identifier reading all fields of the specified package.
+     * @param pkg the package.
+     * @return the definition or null if any of the package commands is not a local identifier
+     *         read or any of its fields is not at fixed position.
+     */
+    public static DynamicLocalId create(Package pkg) {
+        if (pkg.getCommands().isEmpty()) {
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        long timeout = 0;
+        for (DiagCommand cmd : pkg.getCommands()) {
+            int localId = getLocalId(cmd.getRequestCommand());
+            if (localId < 0) {
+                return null;
+            }
+            timeout = Math.max(timeout, cmd.getTimeoutMillis());
+
+            List<Field> fields = new ArrayList<>(cmd.getDiagFields());
+            Collections.sort(fields, new Comparator<Field>() {
+                @Override
+                public int compare(Field a, Field b) {
+                    return a.getPosition() - b.getPosition();
+                }
+            });
+
+            Range range = null;
+            for (Field field : fields) {
+                if (field.getPosition() < 2 || field.getLength() <= 0) {
+                    return null;
+                }
+                int end = field.getPosition() + field.getLength();
+                if (range != null
+                        && field.getPosition() <= range.end
+                        && end - range.start <= MAX_RANGE_LENGTH) {
+                    // Overlapping or adjacent - extend the current range.
+                    range.end = Math.max(range.end, end);
+                } else {
+                    range = new Range(cmd, localId, field.getPosition(), end);
+                    ranges.add(range);
+                }
+            }
+        }
+
+        List<Command> defineCommands = new ArrayList<>();
+        List<Field> relocated = new ArrayList<>();
+        // Position in the dynamic local identifier record, the first data byte is 1.
+        int recordPosition = 1;
+        for (Range range : ranges) {
+            // The position in the source record is counted from its first data byte as well.
+            defineCommands.add(Utils.createCommand(
+                    String.format(Locale.US, "2C %02X %02X %02X %02X %02X %02X",
+                            LOCAL_ID,
+                            DEFINE_BY_LOCAL_ID,
+                            recordPosition,
+                            range.end - range.start,
+                            range.localId,
+                            range.start - 1),
+                    String.format(Locale.US, "6C %02X", LOCAL_ID)));
+
+            // Only the fields of the range command, other commands reading the same local
+            // identifier have ranges of their own.
+            for (Field field : range.command.getDiagFields()) {
+                if (field.getPosition() >= range.start
+                        && field.getPosition() + field.getLength() <= range.end) {
+                    relocated.add(field.relocate(
+                            1 + recordPosition + field.getPosition() - range.start));
+                }
+            }
+            recordPosition += range.end - range.start;
+        }
+
+        DiagCommand read = DiagUtils.createCommand(
+                String.format(Locale.US, "21 %02X", LOCAL_ID),
+                String.format(Locale.US, "61 %02X ", LOCAL_ID),
+                timeout,
+                relocated);
+        Package dynamicPackage = new PackageImpl(
+                pkg.getName(),
+                pkg.getDescription(),
+                pkg.getInitCommands(),
+                Arrays.asList(read),
+                pkg.getRefreshRates());
+
+        return new DynamicLocalId(
+                Utils.createCommand(
+                        String.format(Locale.US, "2C %02X %02X", LOCAL_ID, CLEAR),
+                        String.format(Locale.US, "6C %02X", LOCAL_ID)),
+                defineCommands,
+                dynamicPackage);
+    }
+
+    /**
+     * @return the local identifier read by the request, or -1 if it is not a local identifier
+     *         read, e.g. "ATRV".
+     */
+    private static int getLocalId(String request) {
+        byte[] data = new byte[2];
+        if (DiagUtils.tokenize(request, data) != 2 || (data[0] & 0xFF) != READ_SERVICE) {
+            return -1;
+        }
+        return data[1] & 0xFF;
+    }
+
+    /**
+     * Command clearing the previous definition of the local identifier. Fails if there is none.
+     */
+    public Command getClearCommand() {
+        return this.clearCommand;
+    }
+
+    /**
+     * Commands defining the local identifier, executed after {@link #getClearCommand()}.
+     */
+    public List<Command> getDefineCommands() {
+        return this.defineCommands;
+    }
+
+    /**
+     * Package reading all fields of the original package with a single request of the defined
+     * local identifier.
+     */
+    public Package getPackage() {
+        return this.pkg;
+    }
+}
@@ -1,6 +1,7 @@
 package com.brum.wgdiag.command.diag.impl;
 
 import com.brum.wgdiag.command.Command;
+import com.brum.wgdiag.command.diag.CommandScheduler;
 import com.brum.wgdiag.command.diag.DiagCommand;
 import com.brum.wgdiag.command.diag.Field;
 import com.brum.wgdiag.command.diag.Package;
@@ -11,6 +12,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -22,15 +24,25 @@ public class PackageImpl implements Package {
     private final List<Command> initCommands;
     private final String description;
     private final String name;
+    private final Map<String, Double> refreshRates;
 
     public PackageImpl(String name,
                        String description,
                        List<Command> initCommands,
                        List<DiagCommand> commands) {
+        this(name, description, initCommands, commands, Collections.<String, Double>emptyMap());
+    }
+
+    public PackageImpl(String name,
+                       String description,
+                       List<Command> initCommands,
+                       List<DiagCommand> commands,
+                       Map<String, Double> refreshRates) {
         this.initCommands = initCommands;
         this.commands = commands;
         this.description = description;
         this.name = name;
+        this.refreshRates = refreshRates;
     }
 
     @Override
@@ -38,6 +50,21 @@ public class PackageImpl implements Package {
         return DiagUtils.createEndlessIterator(Collections.<DiagCommand>emptyList(), this.commands);
     }
 
+    @Override
+    public CommandScheduler createScheduler() {
+        return new RateScheduler(this.commands, this.refreshRates);
+    }
+
+    @Override
+    public Map<String, Double> getRefreshRates() {
+        return this.refreshRates;
+    }
+
+    @Override
+    public List<DiagCommand> getCommands() {
+        return this.commands;
+    }
+
     @Override
     public String getDescription() {
         return description;
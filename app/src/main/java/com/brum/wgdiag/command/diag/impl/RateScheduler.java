@@ -0,0 +1,128 @@
+package com.brum.wgdiag.command.diag.impl;
+
+import com.brum.wgdiag.command.diag.CommandScheduler;
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Field;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deadline-first command scheduler. The rate of each command is the highest target refresh rate of
+ * its fields, and the command is due once per its period. The command with the earliest deadline is
+ * returned next.
+ *
+ * The commands are executed back to back, so when the link is faster than required the deadlines
+ * run ahead of time and the commands are interleaved proportionally to their rates. When the link
+ * is too slow the deadlines fall behind, which is reported as overload. A command never falls
+ * behind by more than one period, so a stall isn't followed by a burst of the same command.
+ */
+public class RateScheduler implements CommandScheduler {
+    /**
+     * Refresh rate of the fields without configured rate, in Hz.
+     */
+    public static final double DEFAULT_REFRESH_RATE = 5;
+
+    private static final long LOAD_WINDOW_MILLIS = 5000;
+
+    private final List<DiagCommand> commands;
+    private final double[] periods;
+    private final double[] deadlines;
+    private final double requestedRate;
+
+    private boolean started = false;
+    private long windowStart = 0;
+    private int windowCommands = 0;
+    private volatile double load = 0;
+
+    /**
+     * @param commands the commands to be scheduled.
+     * @param refreshRates target refresh rates in Hz, by field key.
+     */
+    public RateScheduler(List<DiagCommand> commands, Map<String, Double> refreshRates) {
+        this.commands = commands;
+        this.periods = new double[commands.size()];
+        this.deadlines = new double[commands.size()];
+
+        double requestedRate = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            double rate = 0;
+            for (Field field : commands.get(i).getDiagFields()) {
+                Double fieldRate = refreshRates.get(field.getKey());
+                rate = Math.max(rate, fieldRate != null ? fieldRate : DEFAULT_REFRESH_RATE);
+            }
+            if (rate <= 0) {
+                rate = DEFAULT_REFRESH_RATE;
+            }
+            this.periods[i] = 1000 / rate;
+            requestedRate += rate;
+        }
+        this.requestedRate = requestedRate;
+    }
+
+    /**
+     * @return the sum of the command rates in commands per second.
+     */
+    public double getRequestedRate() {
+        return this.requestedRate;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !this.commands.isEmpty();
+    }
+
+    @Override
+    public DiagCommand next() {
+        return next(System.nanoTime() / 1000000L);
+    }
+
+    /**
+     * Get the next command.
+     * @param now current time in milliseconds.
+     */
+    public synchronized DiagCommand next(long now) {
+        if (!this.started) {
+            this.started = true;
+            this.windowStart = now;
+            for (int i = 0; i < this.deadlines.length; i++) {
+                this.deadlines[i] = now;
+            }
+        }
+
+        int next = 0;
+        for (int i = 1; i < this.deadlines.length; i++) {
+            if (this.deadlines[i] < this.deadlines[next]) {
+                next = i;
+            }
+        }
+        this.deadlines[next] =
+                Math.max(this.deadlines[next], now - this.periods[next]) + this.periods[next];
+
+        this.windowCommands++;
+        long elapsed = now - this.windowStart;
+        if (elapsed >= LOAD_WINDOW_MILLIS) {
+            double achievedRate = this.windowCommands * 1000.0 / elapsed;
+            this.load = this.requestedRate / achievedRate;
+            this.windowCommands = 0;
+            this.windowStart = now;
+        }
+
+        return this.commands.get(next);
+    }
+
+    @Override
+    public double getLoad() {
+        return this.load;
+    }
+
+    @Override
+    public boolean isOverloaded() {
+        return this.load > 1;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
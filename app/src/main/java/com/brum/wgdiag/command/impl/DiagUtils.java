@@ -1,5 +1,6 @@
 package com.brum.wgdiag.command.impl;
 
+import com.brum.wgdiag.command.diag.DiagResponse;
 import com.brum.wgdiag.command.diag.Field;
 
 import java.math.BigDecimal;
@@ -15,19 +16,35 @@ import java.util.Map;
  */
 
 public class DiagUtils {
+    /**
+     * The local identifier reads are answered with a single frame.
+     */
+    public static final int SINGLE_FRAME = 1;
+
     public static class DiagCommand extends com.brum.wgdiag.command.impl.Utils.BasicCommand implements com.brum.wgdiag.command.diag.DiagCommand {
         private final List<Field> fields;
 
         public DiagCommand(String request,
                            String responseHeader,
                            long timeout,
+                           int expectedFrames,
                            List<Field> fields) {
-            super(request, responseHeader, timeout);
+            super(request, responseHeader, timeout, expectedFrames);
             this.fields = Collections.unmodifiableList(fields);
         }
 
+        @Override
+        public DiagResponse parse(String response) {
+            return new DiagResponse(response);
+        }
+
         @Override
         public Map<String, String> parseResponse(String response) {
+            return parseResponse(parse(response));
+        }
+
+        @Override
+        public Map<String, String> parseResponse(DiagResponse response) {
             Map<String, String> result = new HashMap<>();
             for (Field field : this.fields) {
                 result.put(field.getKey(), field.toString(response));
@@ -37,6 +54,11 @@ public class DiagUtils {
 
         @Override
         public Map<String, BigDecimal> parseResponseValues(String response) {
+            return parseResponseValues(parse(response));
+        }
+
+        @Override
+        public Map<String, BigDecimal> parseResponseValues(DiagResponse response) {
             Map<String, BigDecimal> result = new HashMap<>();
             for (Field field : this.fields) {
                 result.put(field.getKey(), field.toDecimal(response));
@@ -44,6 +66,13 @@ public class DiagUtils {
             return result;
         }
 
+        @Override
+        public void parseResponseValues(DiagResponse response, double[] values) {
+            for (int i = 0; i < this.fields.size(); i++) {
+                values[i] = this.fields.get(i).toDouble(response);
+            }
+        }
+
         @Override
         public List<Field> getDiagFields() {
             return this.fields;
@@ -54,7 +83,15 @@ public class DiagUtils {
                                                                           final String expectedResponseHeader,
                                                                           final long timeout,
                                                                           final List<Field> fields) {
-        return new DiagCommand(request, expectedResponseHeader, timeout, fields);
+        return createCommand(request, expectedResponseHeader, timeout, SINGLE_FRAME, fields);
+    }
+
+    public static com.brum.wgdiag.command.diag.DiagCommand createCommand(final String request,
+                                                                          final String expectedResponseHeader,
+                                                                          final long timeout,
+                                                                          final int expectedFrames,
+                                                                          final List<Field> fields) {
+        return new DiagCommand(request, expectedResponseHeader, timeout, expectedFrames, fields);
     }
 
     public static Field createTextField(final String key, final String description) {
@@ -70,18 +107,44 @@ public class DiagUtils {
             }
 
             @Override
-            public String toString(String response) {
-                return response;
+            public int getPosition() {
+                return -1;
+            }
+
+            @Override
+            public int getLength() {
+                return 0;
+            }
+
+            @Override
+            public Field relocate(int position) {
+                throw new UnsupportedOperationException("Text field " + key + " can't be relocated.");
+            }
+
+            @Override
+            public String toString(DiagResponse response) {
+                return response.getText();
             }
 
             @Override
-            public BigDecimal toDecimal(String response) {
+            public BigDecimal toDecimal(DiagResponse response) {
                 try {
-                    return new BigDecimal(response.replaceAll("[^\\d.]", ""));
+                    return new BigDecimal(response.getText().replaceAll("[^\\d.]", ""));
                 } catch (Exception e) {
                     return new BigDecimal(0);
                 }
             }
+
+            @Override
+            public String format(double value) {
+                // The units are part of the response text only.
+                return BigDecimal.valueOf(value).toPlainString();
+            }
+
+            @Override
+            public double toDouble(DiagResponse response) {
+                return toDecimal(response).doubleValue();
+            }
         };
     }
 
@@ -92,8 +155,8 @@ public class DiagUtils {
                                     final Format format,
                                     final String key,
                                     final String description) {
-
-
+        final double offsetValue = offset.doubleValue();
+        final double factorValue = factor.doubleValue();
 
         return new Field() {
             @Override
@@ -103,32 +166,96 @@ public class DiagUtils {
             public String getDescription() { return description; }
 
             @Override
-            public BigDecimal toDecimal(String response) {
-                String[] tokens = response.split(" ");
+            public int getPosition() { return startPos; }
 
-                StringBuilder hex = new StringBuilder();
+            @Override
+            public int getLength() { return length; }
 
-                for (int i = startPos; i < startPos + length; i++) {
-                    hex.append(tokens[i]);
-                }
+            @Override
+            public Field relocate(int position) {
+                return createField(position, length, offset, factor, format, key, description);
+            }
 
-                Long rawValue = Long.parseLong(hex.toString(), 16);
-                if (rawValue > 32767) {
-                    rawValue -= 65536;
-                }
-                BigDecimal value = new BigDecimal(rawValue);
+            @Override
+            public BigDecimal toDecimal(DiagResponse response) {
+                BigDecimal value = new BigDecimal(rawValue(response));
                 value = value.divide(factor);
                 value = value.add(offset);
                 return value;
             }
 
             @Override
-            public String toString(String response) {
+            public double toDouble(DiagResponse response) {
+                if (startPos + length > response.getLength()) {
+                    return Double.NaN;
+                }
+                return rawValue(response) / factorValue + offsetValue;
+            }
+
+            @Override
+            public String toString(DiagResponse response) {
                 return format.format(toDecimal(response));
             }
+
+            @Override
+            public String format(double value) {
+                // Formatted as decimal, so it is rounded the same way as the decimal value.
+                return format.format(BigDecimal.valueOf(value));
+            }
+
+            private long rawValue(DiagResponse response) {
+                if (startPos + length > response.getLength()) {
+                    throw new IllegalArgumentException(
+                            "No data for " + key + " in \"" + response.getText() + "\"");
+                }
+
+                byte[] data = response.getData();
+                long rawValue = 0;
+                for (int i = startPos; i < startPos + length; i++) {
+                    rawValue = (rawValue << 8) | (data[i] & 0xFF);
+                }
+                if (rawValue > 32767) {
+                    rawValue -= 65536;
+                }
+                return rawValue;
+            }
         };
     }
 
+    /**
+     * Decode the hex encoded response bytes. Whitespace between the bytes is optional.
+     * @param response the response string, e.g. "61 12 0B 3E".
+     * @param data destination array.
+     * @return number of decoded bytes or -1 if the response is not hex encoded or doesn't fit in
+     *         the destination array.
+     */
+    public static int tokenize(String response, byte[] data) {
+        int length = 0;
+        int high = -1;
+        for (int i = 0; i < response.length(); i++) {
+            char c = response.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+
+            if (high < 0) {
+                high = digit;
+            } else {
+                if (length == data.length) {
+                    return -1;
+                }
+                data[length++] = (byte) ((high << 4) | digit);
+                high = -1;
+            }
+        }
+        return high < 0 ? length : -1;
+    }
+
     public static Field createField(final int startPos,
                                     Format format,
                                     final String key,
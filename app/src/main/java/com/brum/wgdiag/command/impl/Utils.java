@@ -6,18 +6,29 @@ import com.brum.wgdiag.command.Command;
  * Common command utils.
  */
 public class Utils {
+    // Service id of the KWP2000 negative response, followed by the refused service id.
+    private static final String NEGATIVE_RESPONSE = "7F";
 
     public static class BasicCommand implements Command {
         private final String request;
         private final String responseHeader;
         private final Long timeout;
+        private final int expectedFrames;
 
         public BasicCommand(final String request,
                             final String responseHeader,
                             final long timeout) {
+            this(request, responseHeader, timeout, 0);
+        }
+
+        public BasicCommand(final String request,
+                            final String responseHeader,
+                            final long timeout,
+                            final int expectedFrames) {
             this.request = request;
             this.responseHeader = responseHeader;
             this.timeout = timeout;
+            this.expectedFrames = expectedFrames;
         }
 
         @Override
@@ -29,14 +40,75 @@ public class Utils {
         public boolean verifyResponse(String response) {
             return response != null && (
                     responseHeader == null ||
-                            response.startsWith(responseHeader)
+                            matchesHeader(response, responseHeader)
             );
         }
 
+        @Override
+        public String getResponseHeader() {
+            return responseHeader;
+        }
+
         @Override
         public long getTimeoutMillis() {
             return timeout;
         }
+
+        @Override
+        public int getExpectedFrames() {
+            return expectedFrames;
+        }
+    }
+
+    /**
+     * Check if the response starts with the expected header. Spaces are ignored, so the header
+     * matches both the default "61 12 0B" and the compact "61120B" responses, see ATS0.
+     * @param response the response.
+     * @param header the expected header, e.g. "61 12 ".
+     * @return true iff the response starts with the header.
+     */
+    public static boolean matchesHeader(String response, String header) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (j < header.length() && header.charAt(j) == ' ') {
+                j++;
+            }
+            if (j == header.length()) {
+                return true;
+            }
+            while (i < response.length() && response.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == response.length() || response.charAt(i) != header.charAt(j)) {
+                return false;
+            }
+            i++;
+            j++;
+        }
+    }
+
+    /**
+     * Check if the response is the negative response of the ECU to the request, i.e. the request
+     * is refused rather than lost.
+     * @param request the request, e.g. "2C F0 04".
+     * @param response the response, e.g. "7F 2C 12".
+     * @return true iff the response is negative response to the request service.
+     */
+    public static boolean isNegativeResponse(String request, String response) {
+        String compact = compact(request);
+        return compact.length() >= 2
+                && matchesHeader(response, NEGATIVE_RESPONSE + compact.substring(0, 2));
+    }
+
+    /**
+     * Remove the spaces from the command. The adapter ignores them, so they are only a
+     * transmission overhead.
+     * @param command the command, e.g. "21 12".
+     * @return the compact command, e.g. "2112".
+     */
+    public static String compact(String command) {
+        return command.indexOf(' ') < 0 ? command : command.replace(" ", "");
     }
 
     public static Command createCommand(String request,
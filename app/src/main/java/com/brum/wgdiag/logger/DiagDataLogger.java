@@ -1,102 +1,136 @@
 package com.brum.wgdiag.logger;
 
-import android.os.SystemClock;
 import android.util.Log;
 
-import com.brum.wgdiag.command.Command;
-import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.DataFrame;
 import com.brum.wgdiag.command.diag.Field;
 import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.util.Clock;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Dynamically adapting data logger. Creates CSV containing timestamp column and a column for each
  * logged property.
+ *
+ * The rows are streamed to a compact binary file in the log directory by {@link LogWriter}, so the
+ * memory usage doesn't grow with the session length. The CSV is created by {@link LogConverter}
+ * when the log file is requested.
  */
 public class DiagDataLogger {
-    private static LinkedHashSet<String> currentCommandFields = new LinkedHashSet<>();
-    private static Map<String, String> currentRow = new HashMap<>();
-    private static ByteArrayOutputStream file = new ByteArrayOutputStream();
-    private static Package currentPackage = null;
-    private static final long startTime = SystemClock.elapsedRealtime();
-
-    public static void setDiagPackage(Package pkg) {
-        boolean emptyFile = false;
-        if (pkg == DiagDataLogger.currentPackage) {
-            // This can be caused by screen rotation. And screen rorations shouldn't interrupt the
-            // sequential log file.
-            return;
-        }
+    private static File logDirectory = null;
+    private static LogWriter writer = null;
+    private static boolean headerWritten = false;
+
+    private static List<String> currentCommandFields = Collections.emptyList();
+    private static Map<String, Integer> fieldIndexes = new HashMap<>();
+    private static double[] currentRow = new double[0];
+    private static boolean[] received = new boolean[0];
+    private static int receivedCount = 0;
+
+    private static final long startTime = Clock.elapsedMillis();
+
+    /**
+     * Set the directory in which the log files are created.
+     */
+    public static synchronized void setLogDirectory(File directory) {
+        DiagDataLogger.logDirectory = directory;
+    }
 
-        if (currentCommandFields.isEmpty()) {
-            emptyFile = true;
+    /**
+     * Set the package of the logged data. A new data set is started only if the package fields
+     * differ from the current ones.
+     */
+    public static synchronized void setDiagPackage(Package pkg) {
+        List<String> fields = new ArrayList<>();
+        Map<String, Integer> indexes = new HashMap<>();
+        for (Field f : pkg.getFields()) {
+            indexes.put(f.getKey(), fields.size());
+            fields.add(f.getKey());
         }
-        DiagDataLogger.currentCommandFields = new LinkedHashSet<>();
-        DiagDataLogger.currentPackage = pkg;
-
-        Set<String> processedCommands = new HashSet<>();
-        Iterator<DiagCommand> cmdIter = pkg.getCommandIterator();
-        while (true) {
-            DiagCommand cmd = cmdIter.next();
-            if (processedCommands.contains(cmd.getRequestCommand())) {
-                break;
-            }
-            processedCommands.add(cmd.getRequestCommand());
 
-            for (Field f : cmd.getDiagFields()) {
-                currentCommandFields.add(f.getKey());
-            }
+        if (fields.equals(DiagDataLogger.currentCommandFields)) {
+            // This can be caused by screen rotation or by selecting the same data again. And these
+            // shouldn't interrupt the sequential log file.
+            return;
         }
 
-        if (!emptyFile) {
+        DiagDataLogger.currentCommandFields = fields;
+        DiagDataLogger.fieldIndexes = indexes;
+        DiagDataLogger.currentRow = new double[fields.size()];
+        DiagDataLogger.received = new boolean[fields.size()];
+        DiagDataLogger.receivedCount = 0;
+
+        if (DiagDataLogger.writer != null && !DiagDataLogger.writer.isEmpty()) {
             // Put an emtpy line to separate the different data sets.
-            DiagDataLogger.writeRow(null, Collections.<String>emptyList());
-            DiagDataLogger.writeRow(null, Collections.<String>emptyList());
+            DiagDataLogger.writer.writeSeparator();
+            DiagDataLogger.writer.writeSeparator();
         }
-        writeRow("timestamp", DiagDataLogger.currentCommandFields);
-        DiagDataLogger.currentRow = new HashMap<>();
+        DiagDataLogger.headerWritten = false;
+        writeHeader();
     }
 
-    public static void addData(String field, BigDecimal value) {
-        DiagDataLogger.currentRow.put(field, value.toString());
-
-        if (DiagDataLogger.currentRow.keySet().equals(DiagDataLogger.currentCommandFields)) {
-            List<String> values = new ArrayList<>(DiagDataLogger.currentCommandFields.size());
-            for (String key : DiagDataLogger.currentCommandFields) {
-                values.add(DiagDataLogger.currentRow.get(key));
+    public static synchronized void addData(DataFrame frame) {
+        for (int i = 0; i < frame.size(); i++) {
+            Integer index = DiagDataLogger.fieldIndexes.get(frame.getKey(i));
+            if (index == null) {
+                continue;
+            }
+            DiagDataLogger.currentRow[index] = frame.getValue(i);
+            if (!DiagDataLogger.received[index]) {
+                DiagDataLogger.received[index] = true;
+                DiagDataLogger.receivedCount++;
             }
-            Long timestamp = (SystemClock.elapsedRealtime() - DiagDataLogger.startTime)/100;
-            String ts = new BigDecimal(timestamp).divide(new BigDecimal(10)).toString();
-            writeRow(ts, values);
+        }
+
+        if (DiagDataLogger.receivedCount > 0
+                && DiagDataLogger.receivedCount == DiagDataLogger.currentRow.length
+                && writeHeader()) {
+            DiagDataLogger.writer.writeRow(
+                    frame.getTimestamp() - DiagDataLogger.startTime,
+                    DiagDataLogger.currentRow,
+                    DiagDataLogger.currentRow.length);
         }
     }
 
     /**
-     * Get the current file content.
+     * Complete the current log and export it as CSV. The data logged after this call goes to a new
+     * log.
      *
-     * @return the file represented as ASCII encoded byte array.
+     * Only detaching the current log holds the logger lock, so the logging is not blocked while
+     * the log is being completed and converted. That takes long for a long session, so this must
+     * not be called on the UI thread.
+     *
+     * @return the CSV log file.
      */
-    public static File getLogFile(File destinationFolder) throws IOException {
-        File logFile = File.createTempFile("log", ".csv", destinationFolder);
-        FileOutputStream logFileOs = new FileOutputStream(logFile);
-        logFileOs.write(DiagDataLogger.file.toByteArray());
-        logFileOs.flush();
-        logFileOs.close();
+    public static File getLogFile() throws IOException {
+        LogWriter writer;
+        File directory;
+        synchronized (DiagDataLogger.class) {
+            writer = DiagDataLogger.writer;
+            DiagDataLogger.writer = null;
+            DiagDataLogger.headerWritten = false;
+            directory = DiagDataLogger.logDirectory;
+        }
+
+        File logFile = File.createTempFile("log", ".csv", directory);
+        if (writer != null) {
+            writer.close();
+            if (writer.getDropped() > 0) {
+                Log.w(DiagDataLogger.class.getSimpleName(),
+                        "Dropped " + writer.getDropped() + " rows from " + writer.getFile());
+            }
+            LogConverter.toCsv(writer.getFile(), logFile);
+            if (!writer.getFile().delete()) {
+                Log.d(DiagDataLogger.class.getSimpleName(), "Failed to delete " + writer.getFile());
+            }
+        }
         logFile.setReadable(true, false);
 
         return logFile;
@@ -106,22 +140,46 @@ public class DiagDataLogger {
      * Clear the current log file and release all resource;
      */
     public static void reset() {
-        DiagDataLogger.file = new ByteArrayOutputStream();
+        LogWriter writer;
+        synchronized (DiagDataLogger.class) {
+            writer = DiagDataLogger.writer;
+            DiagDataLogger.writer = null;
+            DiagDataLogger.headerWritten = false;
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                Log.d(DiagDataLogger.class.getSimpleName(), "Ignored exception.", ex);
+            }
+            if (!writer.getFile().delete()) {
+                Log.d(DiagDataLogger.class.getSimpleName(), "Failed to delete " + writer.getFile());
+            }
+        }
     }
 
-    private static void writeRow(String timestampColumnValue, Collection<String> items) {
-        try {
-            if (timestampColumnValue != null) {
-                DiagDataLogger.file.write(timestampColumnValue.getBytes());
-                DiagDataLogger.file.write(',');
+    /**
+     * Make sure the log file is open and the header of the current package is written.
+     * @return true iff the log file is available.
+     */
+    private static boolean writeHeader() {
+        if (DiagDataLogger.writer == null) {
+            if (DiagDataLogger.logDirectory == null) {
+                return false;
             }
-            for (String item : items) {
-                DiagDataLogger.file.write(item.getBytes());
-                DiagDataLogger.file.write(',');
+            try {
+                File file = File.createTempFile("log", ".wgl", DiagDataLogger.logDirectory);
+                DiagDataLogger.writer = new LogWriter(file);
+            } catch (IOException ex) {
+                Log.d(DiagDataLogger.class.getSimpleName(), "Failed to create log file.", ex);
+                return false;
             }
-            DiagDataLogger.file.write('\n');
-        } catch (IOException ex) {
-            Log.d(DiagDataLogger.class.getSimpleName(), "Ignored exception.", ex);
         }
+
+        if (!DiagDataLogger.headerWritten) {
+            DiagDataLogger.headerWritten =
+                    DiagDataLogger.writer.writeHeader(DiagDataLogger.currentCommandFields);
+        }
+        return DiagDataLogger.headerWritten;
     }
 }
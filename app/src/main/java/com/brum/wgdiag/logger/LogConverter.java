@@ -0,0 +1,164 @@
+package com.brum.wgdiag.logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts binary log written by {@link LogWriter} to CSV containing timestamp column and a column
+ * for each logged property. Data sets are separated by empty lines.
+ */
+class LogConverter {
+    private static final int FRACTION_DIGITS = 4;
+    private static final long FRACTION_SCALE = 10000;
+
+    private final byte[] digits = new byte[20];
+    private OutputStream out = null;
+
+    /**
+     * Convert the binary log to CSV.
+     * @param source the binary log.
+     * @param destination the CSV file.
+     * @throws IOException if the source is not a valid log or on IO failure.
+     */
+    static void toCsv(File source, File destination) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(source)));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(destination));
+        try {
+            new LogConverter().convert(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private void convert(DataInputStream in, OutputStream out) throws IOException {
+        this.out = out;
+
+        for (byte b : LogWriter.MAGIC) {
+            if (in.readByte() != b) {
+                throw new IOException("Not a diag data log.");
+            }
+        }
+
+        int fields = 0;
+        long timestamp = 0;
+        while (true) {
+            int type = in.read();
+            if (type < 0) {
+                break;
+            }
+
+            try {
+                switch (type) {
+                    case LogWriter.RECORD_HEADER:
+                        fields = in.readUnsignedShort();
+                        putAscii("timestamp,");
+                        for (int i = 0; i < fields; i++) {
+                            byte[] key = new byte[in.readUnsignedShort()];
+                            in.readFully(key);
+                            out.write(key);
+                            out.write(',');
+                        }
+                        out.write('\n');
+                        break;
+                    case LogWriter.RECORD_DATA:
+                        timestamp += in.readUnsignedShort();
+                        putTimestamp(timestamp);
+                        out.write(',');
+                        for (int i = 0; i < fields; i++) {
+                            putDecimal(in.readFloat());
+                            out.write(',');
+                        }
+                        out.write('\n');
+                        break;
+                    case LogWriter.RECORD_TIMESTAMP:
+                        timestamp = in.readLong();
+                        break;
+                    case LogWriter.RECORD_SEPARATOR:
+                        out.write('\n');
+                        break;
+                    default:
+                        throw new IOException("Unknown log record " + type);
+                }
+            } catch (EOFException ex) {
+                // Truncated last record, the log was not closed properly. Ignore it.
+                break;
+            }
+        }
+    }
+
+    private void putAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            this.out.write(value.charAt(i));
+        }
+    }
+
+    /**
+     * Put the timestamp in seconds with 0.1s resolution.
+     */
+    private void putTimestamp(long millis) throws IOException {
+        long tenths = millis / 100;
+        putLong(tenths / 10);
+        if (tenths % 10 != 0) {
+            this.out.write('.');
+            this.out.write((int) ('0' + tenths % 10));
+        }
+    }
+
+    /**
+     * Put the value rounded to 4 fraction digits, without trailing zeros.
+     */
+    private void putDecimal(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)
+                || Math.abs(value) >= Long.MAX_VALUE / FRACTION_SCALE) {
+            putAscii(Double.isNaN(value) ? "NaN" : "0");
+            return;
+        }
+
+        // The values are stored as floats. Use the shortest decimal representation of the float
+        // value, so no float precision noise appears in the fraction digits.
+        long scaled = Math.round(Math.abs(Double.parseDouble(Float.toString((float) value)))
+                * FRACTION_SCALE);
+        if (value < 0 && scaled != 0) {
+            this.out.write('-');
+        }
+        putLong(scaled / FRACTION_SCALE);
+
+        long fraction = scaled % FRACTION_SCALE;
+        if (fraction != 0) {
+            int length = FRACTION_DIGITS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                length--;
+            }
+            this.out.write('.');
+            for (int i = length - 1; i >= 0; i--) {
+                this.digits[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            this.out.write(this.digits, 0, length);
+        }
+    }
+
+    private void putLong(long value) throws IOException {
+        if (value < 0) {
+            this.out.write('-');
+            value = -value;
+        }
+        int length = 0;
+        do {
+            this.digits[this.digits.length - 1 - length] = (byte) ('0' + value % 10);
+            value /= 10;
+            length++;
+        } while (value > 0);
+        this.out.write(this.digits, this.digits.length - length, length);
+    }
+}
@@ -0,0 +1,329 @@
+package com.brum.wgdiag.logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming binary log writer. Rows are queued in a bounded queue of reusable row objects and are
+ * appended to the log file by a background thread through a buffered file channel. The buffer is
+ * flushed periodically, so the memory usage is constant regardless of the log length.
+ *
+ * Data rows are dropped if the writer can't keep up with the producer. The header and separator
+ * records are never dropped - the data records carry no field count, so all data following a lost
+ * header would be decoded with the field count of the previous one. {@link #RESERVED_ROWS} rows
+ * are kept for them, and if even these are used up the producer waits for the writer.
+ *
+ * The log consists of the {@link #MAGIC} and a sequence of records, each starting with a record type
+ * byte:
+ * <ul>
+ * <li>{@link #RECORD_HEADER} - short field count followed by the field keys, each as short length
+ * and ASCII bytes. Starts a new data set.</li>
+ * <li>{@link #RECORD_DATA} - unsigned short timestamp delta in milliseconds followed by a float
+ * value for each field of the current data set.</li>
+ * <li>{@link #RECORD_TIMESTAMP} - long absolute timestamp in milliseconds. Written when the delta
+ * doesn't fit in a data record.</li>
+ * <li>{@link #RECORD_SEPARATOR} - empty line in the CSV export.</li>
+ * </ul>
+ * See {@link LogConverter} for converting it to CSV.
+ */
+class LogWriter implements Runnable {
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int BUFFER_CAPACITY = 16 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int MAX_DELTA = 0xFFFF;
+    private static final long OBTAIN_POLL_MILLIS = 100;
+
+    /**
+     * Number of the free rows that are not used for data rows, so a header and the separators can
+     * always be queued.
+     */
+    static final int RESERVED_ROWS = 8;
+
+    static final byte[] MAGIC = { 'W', 'G', 'L', '1' };
+    static final byte RECORD_HEADER = 1;
+    static final byte RECORD_DATA = 2;
+    static final byte RECORD_TIMESTAMP = 3;
+    static final byte RECORD_SEPARATOR = 4;
+
+    private static final int TYPE_HEADER = 0;
+    private static final int TYPE_DATA = 1;
+    private static final int TYPE_SEPARATOR = 2;
+    private static final int TYPE_CLOSE = 3;
+
+    private static class Row {
+        int type;
+        long timestamp;
+        int size;
+        double[] values = new double[0];
+        List<String> header;
+    }
+
+    private final File file;
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_CAPACITY);
+    private final BlockingQueue<Row> free = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Row> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 1);
+    private final Thread thread;
+    private volatile IOException error = null;
+    // Set once the writer thread exits, no more rows are freed then.
+    private volatile boolean stopped = false;
+    private int dropped = 0;
+    private boolean empty = true;
+    private long lastTimestamp = 0;
+
+    LogWriter(File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * @param start false to not start the writer thread, until {@link #start()} is called. The
+     *              rows are only queued till then.
+     */
+    LogWriter(File file, boolean start) throws IOException {
+        this.file = file;
+        this.stream = new FileOutputStream(file, true);
+        this.channel = this.stream.getChannel();
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            this.free.add(new Row());
+        }
+        this.buffer.put(MAGIC);
+        this.thread = new Thread(this, LogWriter.class.getSimpleName());
+        if (start) {
+            start();
+        }
+    }
+
+    /**
+     * Start the writer thread, if it was not started by the constructor.
+     */
+    void start() {
+        this.thread.start();
+    }
+
+    File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return true iff nothing was written so far.
+     */
+    boolean isEmpty() {
+        return this.empty;
+    }
+
+    /**
+     * @return number of rows dropped because the queue was full.
+     */
+    int getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Queue header record with the field keys. Starts a new data set. Waits for a free row if
+     * there is none.
+     * @return false if the writer has stopped on error and the header can't be written.
+     */
+    boolean writeHeader(List<String> keys) {
+        Row row = obtainReserved();
+        if (row == null) {
+            return false;
+        }
+        row.type = TYPE_HEADER;
+        row.header = keys;
+        queue(row);
+        return true;
+    }
+
+    /**
+     * Queue separator record, used to separate data sets. Waits for a free row if there is none.
+     */
+    void writeSeparator() {
+        Row row = obtainReserved();
+        if (row != null) {
+            row.type = TYPE_SEPARATOR;
+            queue(row);
+        }
+    }
+
+    /**
+     * Queue data row. The values are copied, the array can be reused.
+     * @param timestamp milliseconds since the log start.
+     */
+    void writeRow(long timestamp, double[] values, int size) {
+        Row row = obtain();
+        if (row == null) {
+            return;
+        }
+        if (row.values.length < size) {
+            row.values = new double[size];
+        }
+        System.arraycopy(values, 0, row.values, 0, size);
+        row.type = TYPE_DATA;
+        row.timestamp = timestamp;
+        row.size = size;
+        queue(row);
+    }
+
+    /**
+     * Write all queued rows, close the file and stop the writer thread.
+     * @throws IOException if any of the writes has failed.
+     */
+    void close() throws IOException {
+        Row row = new Row();
+        row.type = TYPE_CLOSE;
+        try {
+            this.pending.put(row);
+            this.thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing " + this.file, ex);
+        }
+
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    private Row obtain() {
+        this.empty = false;
+        // Only the producer takes the free rows, so the reserve can't be used up concurrently.
+        Row row = this.free.size() > RESERVED_ROWS ? this.free.poll() : null;
+        if (row == null) {
+            this.dropped++;
+        }
+        return row;
+    }
+
+    /**
+     * Obtain a row for a header or separator record, using the reserved rows.
+     * @return the row or null if the writer has stopped.
+     */
+    private Row obtainReserved() {
+        this.empty = false;
+        boolean interrupted = false;
+        try {
+            while (!this.stopped) {
+                try {
+                    Row row = this.free.poll(OBTAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (row != null) {
+                        return row;
+                    }
+                } catch (InterruptedException ex) {
+                    // The record must not be lost, keep waiting and restore the interrupt.
+                    interrupted = true;
+                }
+            }
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void queue(Row row) {
+        // Can't fail, there are never more rows than the queue capacity.
+        this.pending.offer(row);
+    }
+
+    @Override
+    public void run() {
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (true) {
+                Row row = this.pending.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (row != null) {
+                    if (row.type == TYPE_CLOSE) {
+                        break;
+                    }
+                    encode(row);
+                    row.header = null;
+                    this.free.offer(row);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                    flush();
+                    lastFlush = now;
+                }
+            }
+            flush();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            this.error = ex;
+        } finally {
+            this.stopped = true;
+            try {
+                this.stream.close();
+            } catch (IOException ex) {
+                if (this.error == null) {
+                    this.error = ex;
+                }
+            }
+        }
+    }
+
+    private void encode(Row row) throws IOException {
+        switch (row.type) {
+            case TYPE_HEADER:
+                int length = 3;
+                for (String key : row.header) {
+                    length += key.length() + 2;
+                }
+                ensureCapacity(length);
+                this.buffer.put(RECORD_HEADER);
+                this.buffer.putShort((short) row.header.size());
+                for (String key : row.header) {
+                    this.buffer.putShort((short) key.length());
+                    for (int i = 0; i < key.length(); i++) {
+                        this.buffer.put((byte) key.charAt(i));
+                    }
+                }
+                break;
+            case TYPE_DATA:
+                long delta = row.timestamp - this.lastTimestamp;
+                if (delta < 0 || delta > MAX_DELTA) {
+                    ensureCapacity(9);
+                    this.buffer.put(RECORD_TIMESTAMP);
+                    this.buffer.putLong(row.timestamp);
+                    delta = 0;
+                }
+                this.lastTimestamp = row.timestamp;
+
+                ensureCapacity(3 + row.size * 4);
+                this.buffer.put(RECORD_DATA);
+                this.buffer.putShort((short) delta);
+                for (int i = 0; i < row.size; i++) {
+                    this.buffer.putFloat((float) row.values[i]);
+                }
+                break;
+            case TYPE_SEPARATOR:
+                ensureCapacity(1);
+                this.buffer.put(RECORD_SEPARATOR);
+                break;
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (this.buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+}
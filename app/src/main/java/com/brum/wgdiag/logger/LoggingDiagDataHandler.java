@@ -1,22 +1,16 @@
 package com.brum.wgdiag.logger;
 
+import com.brum.wgdiag.command.diag.DataFrame;
 import com.brum.wgdiag.command.diag.DataHandler;
 import com.brum.wgdiag.command.diag.Package;
 
-import java.math.BigDecimal;
-
 /**
  * Diagnostic DataHandler for logging purposes.
  */
 public class LoggingDiagDataHandler implements DataHandler {
     @Override
-    public void handle(String key, String value) {
-        // Do nothing.
-    }
-
-    @Override
-    public void handle(String key, BigDecimal value) {
-        DiagDataLogger.addData(key, value);
+    public void handle(DataFrame frame) {
+        DiagDataLogger.addData(frame);
     }
 
     @Override
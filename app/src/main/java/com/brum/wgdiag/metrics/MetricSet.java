@@ -0,0 +1,84 @@
+package com.brum.wgdiag.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and counters of a single command or diag package. All durations are in
+ * nanoseconds.
+ */
+public class MetricSet {
+    private final String name;
+    private final Histogram sendToFirstByte = new Histogram();
+    private final Histogram sendToPrompt = new Histogram();
+    private final Histogram parse = new Histogram();
+    private final Histogram handler = new Histogram();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    MetricSet(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Time from writing the command to receiving the first byte of its response.
+     */
+    public Histogram getSendToFirstByte() {
+        return this.sendToFirstByte;
+    }
+
+    /**
+     * Time from writing the command to receiving the prompt, i.e. the complete response.
+     */
+    public Histogram getSendToPrompt() {
+        return this.sendToPrompt;
+    }
+
+    /**
+     * Time spent to verify and parse the response.
+     */
+    public Histogram getParse() {
+        return this.parse;
+    }
+
+    /**
+     * Time spent in the data handlers.
+     */
+    public Histogram getHandler() {
+        return this.handler;
+    }
+
+    public void recordTimeout() {
+        this.timeouts.incrementAndGet();
+    }
+
+    /**
+     * Number of commands completed without a response prompt.
+     */
+    public long getTimeouts() {
+        return this.timeouts.get();
+    }
+
+    public void recordError() {
+        this.errors.incrementAndGet();
+    }
+
+    /**
+     * Number of IO errors and unexpected responses.
+     */
+    public long getErrors() {
+        return this.errors.get();
+    }
+
+    void reset() {
+        this.sendToFirstByte.reset();
+        this.sendToPrompt.reset();
+        this.parse.reset();
+        this.handler.reset();
+        this.timeouts.set(0);
+        this.errors.set(0);
+    }
+}
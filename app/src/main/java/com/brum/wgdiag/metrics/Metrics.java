@@ -0,0 +1,134 @@
+package com.brum.wgdiag.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Static registry of the runtime metrics - per command (identified by the request) and per diag
+ * package (identified by the name).
+ *
+ * The serial worker records the send to first byte and send to prompt times, the timeouts and the
+ * IO errors of the commands. The processor records the parse and handler times and the unexpected
+ * responses of the commands, and all of these for the package. For packages the send to prompt
+ * time is measured by the processor - from dispatching the command to receiving the response.
+ */
+public class Metrics {
+    private static final ConcurrentMap<String, MetricSet> commands = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, MetricSet> packages = new ConcurrentHashMap<>();
+    private static final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Get the metrics of the specified command, created on first use. The result should be kept by
+     * the callers on the hot paths, rather than looked up on every record.
+     * @param request the request of the command.
+     */
+    public static MetricSet getCommandMetrics(String request) {
+        return get(Metrics.commands, request);
+    }
+
+    /**
+     * Get the metrics of the specified diag package, created on first use.
+     * @param name the name of the package.
+     */
+    public static MetricSet getPackageMetrics(String name) {
+        return get(Metrics.packages, name);
+    }
+
+    public static List<MetricSet> getAllCommandMetrics() {
+        return sorted(Metrics.commands);
+    }
+
+    public static List<MetricSet> getAllPackageMetrics() {
+        return sorted(Metrics.packages);
+    }
+
+    public static void recordReconnect() {
+        Metrics.reconnects.incrementAndGet();
+    }
+
+    /**
+     * Number of times the connection to the adapter was re-established.
+     */
+    public static long getReconnects() {
+        return Metrics.reconnects.get();
+    }
+
+    /**
+     * Clear all metrics.
+     */
+    public static void reset() {
+        for (MetricSet metrics : Metrics.commands.values()) {
+            metrics.reset();
+        }
+        for (MetricSet metrics : Metrics.packages.values()) {
+            metrics.reset();
+        }
+        Metrics.reconnects.set(0);
+    }
+
+    /**
+     * Format short summary of all metrics - a line for each package and command with the median and
+     * 99th percentile times in milliseconds and the counters.
+     */
+    public static String format() {
+        StringBuilder result = new StringBuilder();
+        result.append("reconnects: ").append(getReconnects()).append('\n');
+        for (MetricSet metrics : getAllPackageMetrics()) {
+            format(result, "[" + metrics.getName() + "]", metrics);
+        }
+        for (MetricSet metrics : getAllCommandMetrics()) {
+            format(result, metrics.getName(), metrics);
+        }
+        return result.toString();
+    }
+
+    private static void format(StringBuilder result, String title, MetricSet metrics) {
+        result.append(title).append(':');
+        format(result, "fb", metrics.getSendToFirstByte());
+        format(result, "rt", metrics.getSendToPrompt());
+        format(result, "parse", metrics.getParse());
+        format(result, "handler", metrics.getHandler());
+        result.append(" to ").append(metrics.getTimeouts());
+        result.append(" err ").append(metrics.getErrors());
+        result.append('\n');
+    }
+
+    private static void format(StringBuilder result, String title, Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        result.append(String.format(Locale.US, " %s %.1f/%.1f",
+                title,
+                histogram.getPercentile(50) / 1e6,
+                histogram.getPercentile(99) / 1e6));
+    }
+
+    private static MetricSet get(ConcurrentMap<String, MetricSet> registry, String name) {
+        MetricSet metrics = registry.get(name);
+        if (metrics == null) {
+            MetricSet created = new MetricSet(name);
+            metrics = registry.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    private static List<MetricSet> sorted(ConcurrentMap<String, MetricSet> registry) {
+        List<MetricSet> result = new ArrayList<>(registry.values());
+        Collections.sort(result, new Comparator<MetricSet>() {
+            @Override
+            public int compare(MetricSet left, MetricSet right) {
+                return left.getName().compareTo(right.getName());
+            }
+        });
+        return result;
+    }
+}
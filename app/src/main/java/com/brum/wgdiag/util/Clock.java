@@ -0,0 +1,14 @@
+package com.brum.wgdiag.util;
+
+/**
+ * Monotonic clock of the command execution, for the deadlines and the sample timestamps. Unlike
+ * {@link android.os.SystemClock}, it is available on the plain JVM as well, e.g. in the unit tests.
+ */
+public class Clock {
+    /**
+     * @return milliseconds since an arbitrary origin, never going backwards.
+     */
+    public static long elapsedMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,54 @@
+package com.brum.wgdiag.util;
+
+import android.util.Log;
+
+/**
+ * Debug log of the runtime, the serial communication and the command execution. Writes to the
+ * android log on the device. On the plain JVM, e.g. in the unit tests and the simulator runs, the
+ * android log is not available, so the info, warning and error messages are written to the
+ * standard error stream and the debug messages are dropped.
+ */
+public class DebugLog {
+    // The android runtimes, both Dalvik and ART, report the Dalvik VM name.
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    public static void d(String tag, String msg) {
+        if (ANDROID) {
+            Log.d(tag, msg);
+        }
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+        if (ANDROID) {
+            Log.d(tag, msg, tr);
+        }
+    }
+
+    public static void i(String tag, String msg) {
+        if (ANDROID) {
+            Log.i(tag, msg);
+        } else {
+            print("I", tag, msg, null);
+        }
+    }
+
+    public static void w(String tag, String msg) {
+        if (ANDROID) {
+            Log.w(tag, msg);
+        } else {
+            print("W", tag, msg, null);
+        }
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        if (ANDROID) {
+            Log.e(tag, msg, tr);
+        } else {
+            print("E", tag, msg, tr);
+        }
+    }
+
+    private static void print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg + (tr != null ? " " + tr : ""));
+    }
+}
@@ -1,101 +1,160 @@
 package com.brum.wgdiag.util;
 
 import android.app.Activity;
-import android.os.SystemClock;
-import android.util.Log;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Static executor that will run the required threads. Such (but not only) as the serial IO worker
- * and the command processor.
+ * Static task runtime. Runs:
+ * <ul>
+ * <li>long running tasks, such as the serial IO worker and the command processor, each in a
+ * dedicated named thread - see {@link #start(String, Runnable)};</li>
+ * <li>short serial IO tasks in a single IO lane, so they are executed in order -
+ * see {@link #executeIo(Runnable)};</li>
+ * <li>response callbacks in a single callback lane, so callbacks are never invoked concurrently -
+ * see {@link #executeCallback(Runnable)}.</li>
+ * </ul>
  *
- * All running runnables that have defined method named stop() without argumetns will have this
- * method invoked before they are forcefully killed. This will happen when the executor is stopping.
+ * The activities bind to the runtime while they exist. When the last bound activity is finishing,
+ * all running tasks are cancelled (see {@link Task#cancel()}) and the lanes are shut down once
+ * their queued tasks are completed.
  */
 public class Executor {
+    private static final String THREAD_PREFIX = "wgdiag-";
+    private static final long LANE_KEEP_ALIVE_SECONDS = 5;
 
-    private static ThreadPoolExecutor executor = null;
-    private static Set<Runnable> running = new HashSet<>();
-    private static WeakHashMap<Activity, String> references = new WeakHashMap<>();
+    private static final Object lock = new Object();
+    private static final Set<Activity> activities =
+            Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+    private static final Set<TaskHandle> tasks = new HashSet<>();
+    private static ThreadPoolExecutor ioLane = null;
+    private static ThreadPoolExecutor callbackLane = null;
 
-    private static Runnable cleaner = new Runnable() {
-        @Override
-        public void run() {
-            while (true) {
-                if (Executor.references.isEmpty()) {
-                    Log.d(Executor.class.getSimpleName(), "Stopping...");
-                    for (Runnable runnable : running) {
-                        try {
-                            Method stopMethod = running.getClass().getMethod("stop");
-                            stopMethod.invoke(runnable);
-                        } catch (Exception ex) {
-                            // Ignore exceptions. They will be thrown only for runnables that don't have stop
-                            // method.
-                        }
-                    }
-                    ThreadPoolExecutor e = Executor.executor;
-                    Executor.executor = null;
-                    SystemClock.sleep(100);
-                    Log.d(Executor.class.getSimpleName(), "Stopped?");
-                    e.shutdownNow();
-                    // Unlikely to get to that point, the thread should already be killed. But let's
-                    // stay on the safe side :) .
-                    break;
-                }
-                SystemClock.sleep(1000);
-            }
+    public static void bind(Activity activity) {
+        synchronized (Executor.lock) {
+            Executor.activities.add(activity);
         }
-    };
+    }
 
-    private static void start() {
-        if (executor != null && !executor.isShutdown()) {
-            return;
+    /**
+     * Unbind the activity. If this is the last bound activity and it is finishing, the runtime is
+     * shut down.
+     */
+    public static void unbind(Activity activity) {
+        boolean shutdown;
+        synchronized (Executor.lock) {
+            Executor.activities.remove(activity);
+            shutdown = Executor.activities.isEmpty() && activity.isFinishing();
+        }
+        if (shutdown) {
+            shutdown();
         }
+    }
 
-        Log.d(Executor.class.getSimpleName(), "Starting");
+    /**
+     * Run the task in a new dedicated thread.
+     * @param name the name of the task, used as thread name.
+     * @return handle for cancelling and awaiting the task.
+     */
+    public static TaskHandle start(String name, Runnable task) {
+        TaskHandle handle = new TaskHandle(THREAD_PREFIX + name, task);
+        synchronized (Executor.lock) {
+            Executor.tasks.add(handle);
+        }
+        handle.start();
+        return handle;
+    }
 
-        executor = new ThreadPoolExecutor(
-                5, 5,
-                5, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>()) {
-            @Override
-            protected void beforeExecute(Thread t, Runnable r) {
-                super.beforeExecute(t, r);
-                running.add(r);
+    /**
+     * Execute the runnable in the IO lane. The IO lane tasks are executed one at a time, in the
+     * order they are submitted.
+     */
+    public static void executeIo(Runnable runnable) {
+        synchronized (Executor.lock) {
+            if (Executor.ioLane == null) {
+                Executor.ioLane = createLane("io");
             }
+            Executor.ioLane.execute(runnable);
+        }
+    }
 
-            @Override
-            protected void afterExecute(Runnable r, Throwable t) {
-                super.afterExecute(r, t);
-                running.remove(r);
+    /**
+     * Execute the runnable in the callback lane. The callbacks are executed one at a time, in the
+     * order they are submitted.
+     */
+    public static void executeCallback(Runnable runnable) {
+        synchronized (Executor.lock) {
+            if (Executor.callbackLane == null) {
+                Executor.callbackLane = createLane("callbacks");
             }
-        };
+            Executor.callbackLane.execute(runnable);
+        }
     }
 
-    public static void bind(Activity activity) {
-        start();
-        Executor.references.put(activity, activity.getClass().getSimpleName());
-        if (!Executor.isRunning(Executor.cleaner)) {
-            Executor.execute(cleaner);
+    /**
+     * Cancel all running tasks and shut down the lanes. The already queued lane tasks are still
+     * executed. The runtime can be used again after the shutdown.
+     */
+    public static void shutdown() {
+        DebugLog.d(Executor.class.getSimpleName(), "Stopping...");
+
+        List<TaskHandle> running;
+        synchronized (Executor.lock) {
+            running = new ArrayList<>(Executor.tasks);
+        }
+        for (TaskHandle handle : running) {
+            DebugLog.d(Executor.class.getSimpleName(), "Cancelling " + handle.getName());
+            handle.cancel();
         }
-    }
 
-    public static void unbind(Activity activity) {
-        Executor.references.remove(activity);
+        synchronized (Executor.lock) {
+            if (Executor.ioLane != null) {
+                Executor.ioLane.shutdown();
+                Executor.ioLane = null;
+            }
+            if (Executor.callbackLane != null) {
+                Executor.callbackLane.shutdown();
+                Executor.callbackLane = null;
+            }
+        }
     }
 
-    public static void execute(Runnable runnable) {
-        executor.execute(runnable);
+    static void onFinished(TaskHandle handle) {
+        synchronized (Executor.lock) {
+            Executor.tasks.remove(handle);
+        }
     }
 
-    public static boolean isRunning(Runnable runnable) {
-        return running.contains(runnable);
+    private static ThreadPoolExecutor createLane(final String name) {
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(
+                1, 1,
+                LANE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, THREAD_PREFIX + name);
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        DebugLog.d(Executor.class.getSimpleName(),
+                                "Dropped task of stopped " + name);
+                    }
+                });
+        // Idle lanes don't keep a thread.
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
     }
 }
@@ -0,0 +1,13 @@
+package com.brum.wgdiag.util;
+
+/**
+ * Long running task that supports cooperative cancellation.
+ */
+public interface Task extends Runnable {
+
+    /**
+     * Request the task to stop. Must not block for long - the task should complete its run() as
+     * soon as possible.
+     */
+    void cancel();
+}
@@ -0,0 +1,78 @@
+package com.brum.wgdiag.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of a task running in a dedicated thread, see {@link Executor#start(String, Runnable)}.
+ */
+public class TaskHandle {
+    private final Runnable task;
+    private final Thread thread;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    TaskHandle(String name, final Runnable task) {
+        this.task = task;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    TaskHandle.this.finished.countDown();
+                    Executor.onFinished(TaskHandle.this);
+                }
+            }
+        }, name);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    public String getName() {
+        return this.thread.getName();
+    }
+
+    /**
+     * Request the task to stop. Only tasks implementing {@link Task} can be cancelled. The task
+     * thread is interrupted after {@link Task#cancel()}, so it is woken up if it is blocked waiting.
+     */
+    public void cancel() {
+        if (this.task instanceof Task) {
+            ((Task) this.task).cancel();
+            this.thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return this.finished.getCount() > 0;
+    }
+
+    /**
+     * Block until the task completes.
+     * @return true iff the task completed, false if the waiting thread was interrupted.
+     */
+    public boolean await() {
+        try {
+            this.finished.await();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Block until the task completes or the timeout expires.
+     * @return true iff the task completed.
+     */
+    public boolean await(long timeoutMillis) {
+        try {
+            return this.finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.brum.wgdiag.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveTimeoutTest {
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void testStaticTimeoutUntilEnoughSamples() throws Exception {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        for (int i = 0; i < AdaptiveTimeout.MIN_SAMPLES - 1; i++) {
+            timeout.onResponse(40 * MILLIS);
+        }
+        assertEquals(1000, timeout.getTimeout(1000));
+
+        timeout.onResponse(40 * MILLIS);
+        long learned = timeout.getTimeout(1000);
+        assertTrue("Learned " + learned, learned >= 40 + AdaptiveTimeout.MARGIN_MILLIS);
+        assertTrue("Learned " + learned, learned < 100);
+    }
+
+    @Test
+    public void testStaticTimeoutIsCeiling() throws Exception {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        for (int i = 0; i < AdaptiveTimeout.WINDOW; i++) {
+            timeout.onResponse(900 * MILLIS);
+        }
+        assertEquals(500, timeout.getTimeout(500));
+    }
+
+    @Test
+    public void testMinimalTimeout() throws Exception {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        for (int i = 0; i < AdaptiveTimeout.WINDOW; i++) {
+            timeout.onResponse(MILLIS);
+        }
+        assertEquals(AdaptiveTimeout.MIN_TIMEOUT_MILLIS, timeout.getTimeout(1000));
+    }
+
+    @Test
+    public void testFloor() throws Exception {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        assertEquals(1000, timeout.getTimeout(1000, 250));
+        for (int i = 0; i < AdaptiveTimeout.WINDOW; i++) {
+            timeout.onResponse(40 * MILLIS);
+        }
+        assertEquals(250, timeout.getTimeout(1000, 250));
+        // The static timeout is still the ceiling.
+        assertEquals(200, timeout.getTimeout(200, 250));
+    }
+
+    @Test
+    public void testTimeoutBacksOffAndRelearns() throws Exception {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        for (int i = 0; i < AdaptiveTimeout.WINDOW; i++) {
+            timeout.onResponse(40 * MILLIS);
+        }
+        long learned = timeout.getTimeout(1000);
+
+        timeout.onTimeout();
+        assertEquals(2 * learned, timeout.getTimeout(1000));
+        timeout.onTimeout();
+        assertEquals(4 * learned, timeout.getTimeout(1000));
+
+        // The ECU got slower - the next window learns the new latency.
+        for (int i = 0; i < AdaptiveTimeout.WINDOW; i++) {
+            timeout.onResponse(200 * MILLIS);
+        }
+        long relearned = timeout.getTimeout(1000);
+        assertTrue("Relearned " + relearned, relearned >= 200 + AdaptiveTimeout.MARGIN_MILLIS);
+        assertTrue("Relearned " + relearned, relearned < 300);
+    }
+}
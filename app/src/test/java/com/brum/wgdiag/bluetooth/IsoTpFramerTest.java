@@ -0,0 +1,81 @@
+package com.brum.wgdiag.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IsoTpFramerTest {
+
+    private boolean feed(IsoTpFramer framer, String data) {
+        byte[] bytes = data.getBytes();
+        return framer.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testSingleFrame() throws Exception {
+        IsoTpFramer framer = new IsoTpFramer(128, 3);
+        framer.reset("3E");
+
+        assertTrue(feed(framer, "3E\r7E8 01 7E 55 55 55 55 55 55\r\r>"));
+        assertEquals("7E", framer.getResponse());
+        assertFalse(framer.isTruncated());
+    }
+
+    @Test
+    public void testMultiFrameSplitAcrossReads() throws Exception {
+        IsoTpFramer framer = new IsoTpFramer(128, 3);
+        framer.reset("2112");
+
+        assertFalse(feed(framer, "7E8100A61120B"));
+        assertFalse(feed(framer, "3E0ADB\r7E8210"));
+        // Only the first frame is received so far.
+        assertEquals("61120B3E0ADB", framer.getResponse());
+        assertTrue(framer.isTruncated());
+        assertTrue(feed(framer, "8B708B7555555\r\r>"));
+        assertEquals("61120B3E0ADB08B708B7", framer.getResponse());
+        assertFalse(framer.isTruncated());
+    }
+
+    @Test
+    public void testExtendedIdentifiers() throws Exception {
+        IsoTpFramer framer = new IsoTpFramer(128, 8);
+        framer.reset(null);
+
+        assertTrue(feed(framer, "18 DA F1 10 03 7F 21 31 55 55 55 55\r\r>"));
+        assertEquals("7F2131", framer.getResponse());
+    }
+
+    @Test
+    public void testTextResponse() throws Exception {
+        IsoTpFramer framer = new IsoTpFramer(128, 3);
+        framer.reset("21 12");
+
+        assertTrue(feed(framer, "21 12\rNO DATA\r\r>"));
+        assertEquals("NO DATA", framer.getResponse());
+        assertFalse(framer.isTruncated());
+    }
+
+    @Test
+    public void testLostFrameIsTruncated() throws Exception {
+        IsoTpFramer framer = new IsoTpFramer(128, 3);
+        framer.reset(null);
+
+        assertTrue(feed(framer,
+                "7E8 10 10 61 12 0B 3E 0A DB\r7E8 22 00 00 02 FD 0B A1 02\r\r>"));
+        assertEquals("61120B3E0ADB", framer.getResponse());
+        assertTrue(framer.isTruncated());
+
+        framer.reset(null);
+        assertTrue(feed(framer, "7E8 10 10 61 12 0B 3E 0A DB\r>"));
+        assertTrue(framer.isTruncated());
+    }
+
+    @Test
+    public void testFlowControlIsIgnored() throws Exception {
+        IsoTpFramer framer = new IsoTpFramer(128, 3);
+        framer.reset(null);
+
+        assertTrue(feed(framer, "7E0 30 00 00 00 00 00 00 00\r7E8 02 6C F0 55 55 55 55 55\r>"));
+        assertEquals("6CF0", framer.getResponse());
+    }
+}
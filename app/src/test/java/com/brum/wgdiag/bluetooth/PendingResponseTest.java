@@ -0,0 +1,54 @@
+package com.brum.wgdiag.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PendingResponseTest {
+
+    @Test
+    public void testWaiterIsWokenByResponse() throws Exception {
+        final PendingResponse pending = new PendingResponse();
+        Thread responder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pending.onResponse("41 00");
+            }
+        });
+
+        long start = System.nanoTime();
+        responder.start();
+        assertTrue(pending.await(5000));
+        assertTrue((System.nanoTime() - start) / 1000000L < 1000);
+
+        assertTrue(pending.isDone());
+        assertTrue(pending.isComplete());
+        assertEquals("41 00", pending.getResponse());
+    }
+
+    @Test
+    public void testFirstResponseIsKept() throws Exception {
+        PendingResponse pending = new PendingResponse();
+        assertFalse(pending.isDone());
+        assertFalse(pending.await(10));
+
+        pending.onIncompleteResponse("61");
+        pending.onResponse("61 12");
+
+        assertTrue(pending.isDone());
+        assertFalse(pending.isComplete());
+        assertEquals("61", pending.getResponse());
+    }
+
+    @Test
+    public void testInterruptedWaiter() throws Exception {
+        PendingResponse pending = new PendingResponse();
+        Thread.currentThread().interrupt();
+        try {
+            pending.await();
+            fail("Interrupted waiter must not block");
+        } catch (InterruptedException ex) {
+            assertFalse(pending.isDone());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.brum.wgdiag.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseFramerTest {
+
+    private boolean feed(ResponseFramer framer, String data) {
+        byte[] bytes = data.getBytes();
+        return framer.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testEchoAndLineBreaksAreDropped() throws Exception {
+        ResponseFramer framer = new ResponseFramer(128);
+        framer.reset("21 12");
+
+        assertFalse(feed(framer, "21 12\r"));
+        assertFalse(feed(framer, "61 12 0B 3E\r"));
+        assertTrue(feed(framer, "\r>"));
+        assertEquals("61 12 0B 3E", framer.getResponse());
+    }
+
+    @Test
+    public void testEchoSplitAcrossReads() throws Exception {
+        ResponseFramer framer = new ResponseFramer(128);
+        framer.reset("ATZ");
+
+        assertFalse(feed(framer, "A"));
+        assertFalse(feed(framer, "TZ\r\r"));
+        assertTrue(feed(framer, "ELM327 v1.5\r\r>"));
+        assertEquals("ELM327 v1.5", framer.getResponse());
+    }
+
+    @Test
+    public void testMismatchedEchoIsKept() throws Exception {
+        ResponseFramer framer = new ResponseFramer(128);
+        framer.reset("21 12");
+
+        assertTrue(feed(framer, "21 28 00>"));
+        assertEquals("21 28 00", framer.getResponse());
+    }
+
+    @Test
+    public void testStoppedIsDropped() throws Exception {
+        ResponseFramer framer = new ResponseFramer(128);
+        framer.reset("21 28");
+
+        assertFalse(feed(framer, "STOP"));
+        assertEquals("STOP", framer.getResponse());
+        assertTrue(feed(framer, "PED\r61 28 SS>"));
+        assertEquals("61 28 SS", framer.getResponse());
+    }
+
+    @Test
+    public void testDataAfterPromptIsIgnored() throws Exception {
+        ResponseFramer framer = new ResponseFramer(128);
+        framer.reset(null);
+
+        assertTrue(feed(framer, "OK\r>41 00"));
+        assertEquals("OK", framer.getResponse());
+        assertFalse("truncated", framer.isTruncated());
+
+        framer.clear();
+        assertEquals("", framer.getResponse());
+    }
+
+    @Test
+    public void testOverflowKeepsMostRecentData() throws Exception {
+        ResponseFramer framer = new ResponseFramer(4);
+        framer.reset(null);
+
+        assertTrue(feed(framer, "123456>"));
+        assertEquals("3456", framer.getResponse());
+        assertTrue("overflow", framer.isTruncated());
+
+        framer.reset(null);
+        assertFalse("reset", framer.isTruncated());
+        assertTrue(feed(framer, "1234>"));
+        assertEquals("1234", framer.getResponse());
+        assertFalse("full", framer.isTruncated());
+
+        framer.reset(null);
+        feed(framer, "12345");
+        assertTrue("overflow", framer.isTruncated());
+        framer.clear();
+        assertFalse("clear", framer.isTruncated());
+    }
+}
@@ -0,0 +1,253 @@
+package com.brum.wgdiag.bluetooth;
+
+import com.brum.wgdiag.command.Command;
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.diag.Packages;
+import com.brum.wgdiag.util.Executor;
+import com.brum.wgdiag.util.TaskHandle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SerialWorkerTest {
+
+    @Test
+    public void testStaleResponses() throws Exception {
+        List<String> timedOut = Arrays.asList("61 28 ", "7E");
+        assertTrue(SerialWorker.isStale("61 28 02 EE", "61 12 ", timedOut));
+        assertTrue(SerialWorker.isStale("7E", "61 12 ", timedOut));
+        assertFalse(SerialWorker.isStale("61 12 0B 3E", "61 12 ", timedOut));
+        assertFalse(SerialWorker.isStale("7F 21 31", "61 12 ", timedOut));
+        assertFalse(SerialWorker.isStale("NO DATA", "61 12 ", timedOut));
+        assertFalse(SerialWorker.isStale("?", "61 12 ", timedOut));
+        assertFalse(SerialWorker.isStale("61 28 02 EE", null, timedOut));
+        assertFalse(SerialWorker.isStale("61 28 02 EE", "OK", timedOut));
+        assertFalse(SerialWorker.isStale("BUS INIT: OK", "C1 ", timedOut));
+        // Not expected by any timed out request - delivered to the current one.
+        assertFalse(SerialWorker.isStale("61 20 03 5A", "61 12 ", timedOut));
+        assertFalse(SerialWorker.isStale("61 28 02 EE", "61 12 ",
+                Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testResponsesAreDeliveredToTheirRequests() throws Exception {
+        SerialWorker worker = new SerialWorker(
+                new SimulatedTransport(new Elm327Simulator(), 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        try {
+            PendingResponse reset = new PendingResponse();
+            PendingResponse request = new PendingResponse();
+            PendingResponse unknown = new PendingResponse();
+            worker.sendCommand("ATZ", "ELM327", 0, 5000, reset);
+            worker.sendCommand("21 12", "61 12 ", 1, 5000, request);
+            worker.sendCommand("21 99", "61 99 ", 1, 5000, unknown);
+
+            assertTrue(unknown.await(5000));
+            assertTrue(reset.isDone());
+            assertTrue(request.isDone());
+
+            assertEquals("ELM327 v1.5", reset.getResponse());
+            assertTrue(request.isComplete());
+            assertTrue(request.getResponse(), request.getResponse().startsWith("61 12 "));
+            assertEquals("7F 21 31", unknown.getResponse());
+        } finally {
+            handle.cancel();
+            assertTrue(handle.await(5000));
+        }
+    }
+
+    @Test
+    public void testExpectedFramesFallback() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator();
+        simulator.setExpectedFramesSupported(false);
+        SerialWorker worker = new SerialWorker(new SimulatedTransport(simulator, 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        try {
+            PendingResponse first = new PendingResponse();
+            PendingResponse second = new PendingResponse();
+            worker.sendCommand("21 12", "61 12 ", 1, 5000, first);
+            worker.sendCommand("21 28", "61 28 ", 1, 5000, second);
+
+            assertTrue(second.await(5000));
+            assertTrue(first.isComplete());
+            assertTrue(first.getResponse(), first.getResponse().startsWith("61 12 "));
+            assertTrue(second.isComplete());
+            assertTrue(second.getResponse(), second.getResponse().startsWith("61 28 "));
+
+            // Rejected repeatedly - the suffix is not send anymore.
+            PendingResponse third = new PendingResponse();
+            PendingResponse fourth = new PendingResponse();
+            worker.sendCommand("21 20", "61 20 ", 1, 5000, third);
+            worker.sendCommand("21 22", "61 22 ", 1, 5000, fourth);
+            assertTrue(fourth.await(5000));
+            assertTrue(third.isComplete());
+            assertTrue(fourth.getResponse(), fourth.getResponse().startsWith("61 22 "));
+            assertEquals("2122", simulator.getLastCommand());
+        } finally {
+            handle.cancel();
+            assertTrue(handle.await(5000));
+        }
+    }
+
+    @Test
+    public void testGarbledLineKeepsExpectedFrames() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator();
+        SerialWorker worker = new SerialWorker(new SimulatedTransport(simulator, 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        try {
+            simulator.garbleNextCommands(1);
+            PendingResponse garbled = new PendingResponse();
+            worker.sendCommand("21 12", "61 12 ", 1, 5000, garbled);
+            assertTrue(garbled.await(5000));
+            assertTrue(garbled.isComplete());
+            assertTrue(garbled.getResponse(), garbled.getResponse().startsWith("61 12 "));
+
+            PendingResponse next = new PendingResponse();
+            worker.sendCommand("21 28", "61 28 ", 1, 5000, next);
+            assertTrue(next.await(5000));
+            assertTrue(next.getResponse(), next.getResponse().startsWith("61 28 "));
+            assertEquals("21281", simulator.getLastCommand());
+        } finally {
+            handle.cancel();
+            assertTrue(handle.await(5000));
+        }
+    }
+
+    @Test
+    public void testSilentEcuIsAwaitedForTheAdapterTimeout() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator();
+        SerialWorker worker = new SerialWorker(new SimulatedTransport(simulator, 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        try {
+            // Fast responses teach a timeout well below the adapter timeout of 200 ms.
+            for (int i = 0; i < AdaptiveTimeout.WINDOW; i++) {
+                PendingResponse response = new PendingResponse();
+                worker.sendCommand("21 12", "61 12 ", 1, 5000, response);
+                assertTrue(response.await(5000));
+            }
+
+            simulator.setEcuResponding(false);
+            PendingResponse silent = new PendingResponse();
+            long start = System.nanoTime();
+            worker.sendCommand("21 12", "61 12 ", 1, 5000, silent);
+            assertTrue(silent.await(5000));
+            assertTrue(silent.getResponse(), silent.isComplete());
+            assertEquals("NO DATA", silent.getResponse());
+            assertTrue(System.nanoTime() - start >= simulator.getTimeoutMillis() * 1000000L);
+
+            // The adapter is not interrupted, so the next request gets its own response.
+            simulator.setEcuResponding(true);
+            PendingResponse next = new PendingResponse();
+            worker.sendCommand("21 28", "61 28 ", 1, 5000, next);
+            assertTrue(next.await(5000));
+            assertTrue(next.getResponse(), next.isComplete());
+            assertTrue(next.getResponse(), next.getResponse().startsWith("61 28 "));
+        } finally {
+            handle.cancel();
+            assertTrue(handle.await(5000));
+        }
+    }
+
+    @Test
+    public void testCancelDoesNotBlock() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator();
+        simulator.setEcuResponding(false);
+        SerialWorker worker = new SerialWorker(new SimulatedTransport(simulator, 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        PendingResponse pending = new PendingResponse();
+        worker.sendCommand("21 12", "61 12 ", 1, 5000, pending);
+        Thread.sleep(50);
+
+        long start = System.nanoTime();
+        handle.cancel();
+        assertTrue(System.nanoTime() - start < 50000000L);
+
+        // The worker thread fails the pending request on its way out.
+        assertTrue(handle.await(5000));
+        assertTrue(pending.await(5000));
+        assertTrue("Expected error", pending.getError() != null);
+    }
+
+    @Test
+    public void testIsoTpResponsesOverCan() throws Exception {
+        SerialWorker worker = new SerialWorker(
+                new SimulatedTransport(new Elm327Simulator(), 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        try {
+            for (Command cmd : Packages.CAN_INIT_COMMANDS) {
+                PendingResponse init = new PendingResponse();
+                worker.sendCommand(cmd.getRequestCommand(), cmd.getResponseHeader(), 0, 10000, init);
+                assertTrue(cmd.getRequestCommand(), init.await(10000));
+                assertTrue(init.getResponse(), cmd.verifyResponse(init.getResponse()));
+            }
+
+            // The multi-frame responses are reassembled and parsed like the K-line ones.
+            for (Package pkg : Packages.PACKAGES) {
+                for (DiagCommand cmd : pkg.getCommands()) {
+                    PendingResponse response = new PendingResponse();
+                    worker.sendCommand(cmd.getRequestCommand(), cmd.getResponseHeader(),
+                            cmd.getExpectedFrames(), 5000, response);
+                    assertTrue(cmd.getRequestCommand(), response.await(5000));
+                    assertTrue(response.getResponse(), response.isComplete());
+                    assertTrue(response.getResponse(), cmd.verifyResponse(response.getResponse()));
+                    assertEquals(
+                            cmd.getDiagFields().size(),
+                            cmd.parseResponseValues(response.getResponse()).size());
+                }
+            }
+
+            PendingResponse request = new PendingResponse();
+            worker.sendCommand("21 12", "61 12 ", 1, 5000, request);
+            assertTrue(request.await(5000));
+            assertTrue(request.getResponse(), request.getResponse().startsWith("61120B3E0ADB"));
+            assertTrue(request.getResponse(), request.getResponse().endsWith("03A00000"));
+        } finally {
+            handle.cancel();
+            assertTrue(handle.await(5000));
+        }
+    }
+
+    @Test
+    public void testInterruptedWaitReleasesTheWorker() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator();
+        SerialWorker worker = new SerialWorker(new SimulatedTransport(simulator, 0, 0, 0));
+        TaskHandle handle = Executor.start("serial", worker);
+        try {
+            final AtomicReference<Thread> ioThread = new AtomicReference<>();
+            Executor.executeIo(new Runnable() {
+                @Override
+                public void run() {
+                    ioThread.set(Thread.currentThread());
+                }
+            });
+
+            simulator.dropNextCommands(1);
+            PendingResponse lost = new PendingResponse();
+            worker.sendCommand("21 12", "61 12 ", 1, 5000, lost);
+            Thread.sleep(50);
+            ioThread.get().interrupt();
+
+            assertTrue(lost.await(1000));
+            assertTrue("Expected error", lost.getError() != null);
+
+            // The next request is not blocked by the abandoned one.
+            PendingResponse next = new PendingResponse();
+            long start = System.nanoTime();
+            worker.sendCommand("21 28", "61 28 ", 1, 5000, next);
+            assertTrue(next.await(5000));
+            assertTrue(next.getResponse(), next.isComplete());
+            assertTrue(next.getResponse(), next.getResponse().startsWith("61 28 "));
+            assertTrue(System.nanoTime() - start < 1000000000L);
+        } finally {
+            handle.cancel();
+            assertTrue(handle.await(5000));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.brum.wgdiag.bluetooth;
+
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.diag.Packages;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class SimulatedTransportTest {
+
+    private String exchange(Transport transport, String command) throws IOException {
+        OutputStream output = transport.getOutputStream();
+        output.write((command + "\n\r").getBytes());
+        output.flush();
+
+        ResponseFramer framer = new ResponseFramer(1024);
+        framer.reset(command);
+        InputStream input = transport.getInputStream();
+        byte[] buffer = new byte[256];
+        while (true) {
+            int bytesRead = input.read(buffer);
+            assertTrue(bytesRead > 0);
+            if (framer.feed(buffer, 0, bytesRead)) {
+                return framer.getResponse();
+            }
+        }
+    }
+
+    @Test
+    public void testInitDialogue() throws Exception {
+        Transport transport = new SimulatedTransport(new Elm327Simulator(), 0, 0, 0);
+        transport.connect();
+
+        assertEquals("ELM327 v1.5", exchange(transport, "ATZ"));
+        assertEquals("OK", exchange(transport, "ATSP5"));
+        assertEquals("OK", exchange(transport, "ATSH8115F1"));
+        assertEquals("BUS INIT: OK", exchange(transport, "ATFI"));
+        assertEquals("C1 EF 8F", exchange(transport, "81"));
+        assertEquals("7F 21 31", exchange(transport, "21 99"));
+    }
+
+    @Test
+    public void testCompactProfile() throws Exception {
+        Transport transport = new SimulatedTransport(new Elm327Simulator(), 0, 0, 0);
+        transport.connect();
+
+        assertEquals("ELM327 v1.5", exchange(transport, "ATZ"));
+        assertEquals("OK", exchange(transport, "ATE0"));
+        assertEquals("OK", exchange(transport, "ATL0"));
+        assertEquals("OK", exchange(transport, "ATS0"));
+        assertEquals("OK", exchange(transport, "ATH0"));
+        assertEquals("C1EF8F", exchange(transport, "81"));
+        assertEquals("7E", exchange(transport, "3E"));
+        assertTrue(exchange(transport, "2112").startsWith("61120B3E0ADB"));
+    }
+
+    @Test
+    public void testAllPackageCommandsAreAnswered() throws Exception {
+        Transport transport = new SimulatedTransport(new Elm327Simulator(), 0, 0, 0);
+        transport.connect();
+
+        for (Package pkg : Packages.PACKAGES) {
+            for (DiagCommand cmd : pkg.getCommands()) {
+                String response = exchange(transport, cmd.getRequestCommand());
+                assertTrue(response, cmd.verifyResponse(response));
+                assertEquals(
+                        cmd.getDiagFields().size(),
+                        cmd.parseResponseValues(response).size());
+            }
+        }
+    }
+
+    @Test
+    public void testLatencyAndPacing() throws Exception {
+        Transport transport = new SimulatedTransport(new Elm327Simulator(), 100000, 20, 0);
+        transport.connect();
+
+        // AT commands are answered by the adapter without the bus latency.
+        long start = System.nanoTime();
+        exchange(transport, "ATSP5");
+        assertTrue(System.nanoTime() - start < 20000000L);
+
+        // 21 12 output has 110 bytes, 0.1 ms each.
+        start = System.nanoTime();
+        exchange(transport, "21 12");
+        assertTrue(System.nanoTime() - start >= 30000000L);
+    }
+
+    @Test
+    public void testCloseUnblocksReader() throws Exception {
+        final Transport transport = new SimulatedTransport();
+        transport.connect();
+
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                    transport.close();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        closer.start();
+
+        try {
+            transport.getInputStream().read(new byte[16]);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // Expected.
+        }
+        closer.join();
+    }
+}
@@ -0,0 +1,33 @@
+package com.brum.wgdiag.command;
+
+import com.brum.wgdiag.command.diag.Packages;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DiagSessionTest {
+
+    @Test
+    public void testKLineSessionIsResumed() throws Exception {
+        DiagSession.invalidate();
+        List<Command> initCommands = Packages.PACKAGES.get(0).getInitCommands();
+        assertFalse("not established", DiagSession.isEstablished(initCommands));
+
+        DiagSession.established(initCommands);
+        assertTrue("established", DiagSession.isEstablished(initCommands));
+
+        DiagSession.invalidate();
+        assertFalse("invalidated", DiagSession.isEstablished(initCommands));
+    }
+
+    @Test
+    public void testCanSessionIsNeverResumed() throws Exception {
+        // No wakeup messages keep the CAN session alive while the adapter is idle.
+        DiagSession.established(Packages.CAN_INIT_COMMANDS);
+        assertFalse("CAN", DiagSession.isEstablished(Packages.CAN_INIT_COMMANDS));
+        DiagSession.invalidate();
+    }
+}
@@ -0,0 +1,171 @@
+package com.brum.wgdiag.command;
+
+import com.brum.wgdiag.activity.utils.ExecutionInterrupter;
+import com.brum.wgdiag.bluetooth.Elm327Simulator;
+import com.brum.wgdiag.bluetooth.Service;
+import com.brum.wgdiag.bluetooth.SimulatedTransport;
+import com.brum.wgdiag.bluetooth.Transport;
+import com.brum.wgdiag.command.diag.DataFrame;
+import com.brum.wgdiag.command.diag.DataHandler;
+import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.diag.Packages;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ProcessorTest {
+    private static final long TIMEOUT_NANOS = 10000000000L;
+    private static final long WINDOW_NANOS = 3000000000L;
+
+    private ExecutionInterrupter start(Transport transport, Package pkg, DataHandler handler) {
+        Service.init(transport);
+        // A new connection, as after the device verification.
+        DiagSession.invalidate();
+        SessionTiming.reset();
+        return Processor.executeDiagPackage(pkg, handler, null, null);
+    }
+
+    private void stop(ExecutionInterrupter interrupter) {
+        interrupter.interrupt(true);
+        Service.stop();
+    }
+
+    @Test
+    public void testDefaultTimingIsRestoredWhenUnstable() throws Exception {
+        final Elm327Simulator simulator = new Elm327Simulator();
+        final AtomicBoolean dropped = new AtomicBoolean(false);
+        ExecutionInterrupter interrupter = start(
+                new SimulatedTransport(simulator, 0, 0, 0), Packages.PACKAGES.get(0),
+                new DataHandler() {
+                    @Override
+                    public void handle(DataFrame frame) {
+                        // Lose the next requests once the pipeline runs with the adjusted timing.
+                        if (SessionTiming.isAdjusted() && dropped.compareAndSet(false, true)) {
+                            simulator.dropNextCommands(SessionTiming.UNSTABLE_TIMEOUTS);
+                        }
+                    }
+
+                    @Override
+                    public void switchPackage(Package pkg) {
+                    }
+                });
+        try {
+            List<String> restore = Arrays.asList("8301", "ATAT1", "ATST32");
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            List<String> received = simulator.getReceivedCommands();
+            while (Collections.indexOfSubList(received, restore) < 0) {
+                assertTrue("Defaults not restored: "
+                                + received.subList(0, Math.min(received.size(), 50)),
+                        System.nanoTime() < deadline);
+                Thread.sleep(10);
+                received = simulator.getReceivedCommands();
+            }
+
+            // The restore directly follows the timed out reads.
+            int index = Collections.indexOfSubList(received, restore);
+            for (String command : received.subList(index - SessionTiming.UNSTABLE_TIMEOUTS, index)) {
+                assertTrue(received.toString(), command.startsWith("21"));
+            }
+            assertFalse(received.toString(), received.contains("8302"));
+            assertFalse("Adjustment not disabled", SessionTiming.isEnabled());
+        } finally {
+            stop(interrupter);
+        }
+    }
+
+    @Test
+    public void testAdapterTimeoutIsSetWhenTimingIsRefused() throws Exception {
+        final Elm327Simulator simulator = new Elm327Simulator();
+        simulator.putResponse("83 00", "7F 83 11");
+        ExecutionInterrupter interrupter = start(
+                new SimulatedTransport(simulator, 0, 0, 0), Packages.PACKAGES.get(0),
+                new SampleCounter());
+        try {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (!SessionTiming.isAdjusted()) {
+                assertTrue("Timing not adjusted: " + simulator.getReceivedCommands(),
+                        System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+
+            // The adapter timeout, and so the floor of the response timeouts, is lowered even if
+            // the ECU keeps its default timing.
+            List<String> received = simulator.getReceivedCommands();
+            int refused = received.indexOf("8300");
+            assertTrue(received.toString(), refused >= 0);
+            assertEquals(received.toString(), "ATAT2", received.get(refused + 1));
+            // The shortest timeout, as the simulated ECU responds immediately.
+            assertTrue(received.toString(), received.indexOf("ATST08") > refused);
+            assertFalse(received.toString(), received.contains("8301"));
+            assertTrue(SessionTiming.isEnabled());
+            assertFalse(SessionTiming.isEcuTimingSupported());
+        } finally {
+            stop(interrupter);
+        }
+    }
+
+    /**
+     * Counts the samples - the complete frames - received after the first one.
+     */
+    private static class SampleCounter implements DataHandler {
+        private int samples = -1;
+        private long firstNanos = 0;
+        private long lastNanos = 0;
+
+        @Override
+        public synchronized void handle(DataFrame frame) {
+            if (!frame.isComplete()) {
+                return;
+            }
+            this.lastNanos = System.nanoTime();
+            if (++this.samples == 0) {
+                this.firstNanos = this.lastNanos;
+            }
+        }
+
+        @Override
+        public void switchPackage(Package pkg) {
+        }
+
+        synchronized boolean isStarted() {
+            return this.samples >= 0;
+        }
+
+        synchronized double getRate() {
+            return this.samples <= 0 ? 0 : this.samples * 1e9 / (this.lastNanos - this.firstNanos);
+        }
+    }
+
+    @Test
+    public void testSampleRateOverSimulatedLink() throws Exception {
+        // K-line speed and ECU latency of the default simulated adapter. Each read takes the
+        // latency plus about 20 ms of serial output, so the pipelined package is read at about
+        // 15 samples per second. Waiting for the timeouts or polling the input instead of blocking
+        // on it would drop well below the asserted minimum.
+        SampleCounter counter = new SampleCounter();
+        ExecutionInterrupter interrupter =
+                start(new SimulatedTransport(), Packages.PACKAGES.get(0), counter);
+        try {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (!counter.isStarted()) {
+                assertTrue("No samples received", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            Thread.sleep(WINDOW_NANOS / 1000000L);
+
+            double rate = counter.getRate();
+            System.out.println(String.format(Locale.US, "%s: %.1f samples/s",
+                    Packages.PACKAGES.get(0).getName(), rate));
+            assertTrue(String.format(Locale.US, "%.1f samples/s", rate), rate >= 10);
+        } finally {
+            stop(interrupter);
+        }
+    }
+}
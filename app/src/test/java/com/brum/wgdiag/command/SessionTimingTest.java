@@ -0,0 +1,68 @@
+package com.brum.wgdiag.command;
+
+import com.brum.wgdiag.command.impl.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionTimingTest {
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void testSetCommandFromLimits() throws Exception {
+        assertTrue(SessionTiming.READ_LIMITS.verifyResponse("C3 00 00 01 00 14 00"));
+
+        Command set = SessionTiming.createSetCommand("C3 00 00 01 00 14 00");
+        assertEquals("83 03 00 01 00 14 00", set.getRequestCommand());
+        assertTrue(set.verifyResponse("C303"));
+
+        assertEquals(
+                "83 03 02 1A 00 14 0A",
+                SessionTiming.createSetCommand("C300021A00140A").getRequestCommand());
+        assertNull(SessionTiming.createSetCommand("C3 00 00"));
+        assertNull(SessionTiming.createSetCommand("7F 83 11"));
+        assertNull(SessionTiming.createSetCommand("NO DATA"));
+    }
+
+    @Test
+    public void testTimeoutCommand() throws Exception {
+        assertEquals("ATST0F", SessionTiming.createTimeoutCommand(30 * MILLIS).getRequestCommand());
+        // Bounded by the minimum and the default timeouts.
+        assertEquals("ATST08", SessionTiming.createTimeoutCommand(1 * MILLIS).getRequestCommand());
+        assertEquals("ATST32", SessionTiming.createTimeoutCommand(500 * MILLIS).getRequestCommand());
+    }
+
+    @Test
+    public void testDisabledPerConnection() throws Exception {
+        SessionTiming.reset();
+        assertTrue(SessionTiming.isEnabled());
+
+        SessionTiming.ecuTimingUnsupported();
+        assertTrue(SessionTiming.isEnabled());
+        assertFalse(SessionTiming.isEcuTimingSupported());
+
+        SessionTiming.adjusted();
+        SessionTiming.disable();
+        assertFalse(SessionTiming.isEnabled());
+        assertFalse(SessionTiming.isAdjusted());
+
+        // A new connection tries again.
+        SessionTiming.reset();
+        assertTrue(SessionTiming.isEnabled());
+        assertTrue(SessionTiming.isEcuTimingSupported());
+        assertFalse(SessionTiming.isAdjusted());
+    }
+
+    @Test
+    public void testRefusal() throws Exception {
+        String request = SessionTiming.READ_LIMITS.getRequestCommand();
+        assertTrue(Utils.isNegativeResponse(request, "7F 83 11"));
+        assertTrue(Utils.isNegativeResponse(request, "7F8312"));
+        // Lost or unrelated responses are not a refusal.
+        assertFalse(Utils.isNegativeResponse(request, "NO DATA"));
+        assertFalse(Utils.isNegativeResponse(request, ""));
+        assertFalse(Utils.isNegativeResponse(request, "7F 21 11"));
+        assertFalse(Utils.isNegativeResponse(request, "C3 00 00 01 00 14 00"));
+    }
+}
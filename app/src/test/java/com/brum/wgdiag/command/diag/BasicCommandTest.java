@@ -3,9 +3,12 @@ package com.brum.wgdiag.command.diag;
 
 import com.brum.wgdiag.command.Command;
 import com.brum.wgdiag.command.Processor;
+import com.brum.wgdiag.command.impl.DiagUtils;
+import com.brum.wgdiag.command.impl.Utils;
 
 import org.junit.Test;
 
+import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -112,4 +115,77 @@ public class BasicCommandTest {
         verifyPackage(Packages.MISC_PACKAGE, expected);
     }
 
+    @Test
+    public void testPrimitiveDecodingMatchesDecimal() throws Exception {
+        for (Package pkg : Packages.PACKAGES) {
+            for (DiagCommand cmd : pkg.getCommands()) {
+                String response = RESPONSES.get(cmd.getRequestCommand());
+                if (response == null) {
+                    continue;
+                }
+
+                double[] values = new double[cmd.getDiagFields().size()];
+                cmd.parseResponseValues(cmd.parse(response), values);
+
+                Map<String, BigDecimal> expected = cmd.parseResponseValues(response);
+                for (int i = 0; i < values.length; i++) {
+                    String key = cmd.getDiagFields().get(i).getKey();
+                    assertEquals(key, expected.get(key).doubleValue(), values[i], 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFormattedValuesMatchText() throws Exception {
+        for (Package pkg : Packages.PACKAGES) {
+            for (DiagCommand cmd : pkg.getCommands()) {
+                String response = RESPONSES.get(cmd.getRequestCommand());
+                if (response == null) {
+                    continue;
+                }
+
+                DataFrame frame = new DataFrame(cmd);
+                frame.set(0, cmd.parse(response));
+                for (int i = 0; i < frame.size(); i++) {
+                    assertEquals(frame.getKey(i),
+                            frame.getText(i), frame.getField(i).format(frame.getValue(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTokenize() throws Exception {
+        byte[] data = new byte[4];
+        assertEquals(3, DiagUtils.tokenize("61 12 FF", data));
+        assertEquals((byte) 0xFF, data[2]);
+        assertEquals(3, DiagUtils.tokenize("6112ff", data));
+        assertEquals(-1, DiagUtils.tokenize("ELM327", data));
+        assertEquals(-1, DiagUtils.tokenize("61 12 0", data));
+        assertEquals(-1, DiagUtils.tokenize("61 12 0B 3E 0A", data));
+    }
+
+    @Test
+    public void testCompactResponses() throws Exception {
+        for (Package pkg : Packages.PACKAGES) {
+            for (DiagCommand cmd : pkg.getCommands()) {
+                String response = RESPONSES.get(cmd.getRequestCommand());
+                if (response == null) {
+                    continue;
+                }
+                String compact = response.replace(" ", "");
+                assertTrue(compact, cmd.verifyResponse(compact));
+                assertEquals(cmd.parseResponse(response), cmd.parseResponse(compact));
+            }
+        }
+
+        assertTrue(Utils.matchesHeader("C1EF8F", "C1 EF 8F"));
+        assertTrue(Utils.matchesHeader("61 12 0B", "6112"));
+        assertFalse(Utils.matchesHeader("6128", "61 12 "));
+        assertFalse(Utils.matchesHeader("61", "61 12 "));
+        assertEquals("2112", Utils.compact("21 12"));
+        assertEquals("ATSH8115F1", Utils.compact("ATSH8115F1"));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+package com.brum.wgdiag.command.diag;
+
+import com.brum.wgdiag.command.diag.impl.CommandPlanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CommandPlannerTest {
+    private static final String RESPONSE_21_12 =
+            "61 12 0B 3E 0A DB 08 B7 08 B7 00 00 02 FD 0B A1 02 4A 03 AE 0B BB 01 32 01 2B 00 6F 09 7F 03 A0 00 00";
+    private static final String RESPONSE_21_28 =
+            "61 28 02 EE 03 2C 02 EE 02 EE 02 EC 02 EE 02 EE 00 00 00 CC FF 3C 00 68 FF FB FF 94 00 00 F6";
+
+    private List<String> requests(List<DiagCommand> commands) {
+        List<String> result = new ArrayList<>();
+        for (DiagCommand cmd : commands) {
+            result.add(cmd.getRequestCommand());
+        }
+        return result;
+    }
+
+    @Test
+    public void testSharedRequestsAreMerged() throws Exception {
+        List<DiagCommand> commands = CommandPlanner.plan(
+                Arrays.asList(Packages.RAIL_PRESSURE_PACKAGE, Packages.MAP_PACKAGE, Packages.MISC_PACKAGE));
+
+        assertEquals(Arrays.asList("21 12", "21 22", "21 28"), requests(commands));
+
+        Map<String, String> parsed = commands.get(0).parseResponse(RESPONSE_21_12);
+        assertEquals(6, parsed.size());
+        assertEquals("300.3 bar", parsed.get("rail_actual"));
+        assertEquals("942 mbar", parsed.get("map_actual"));
+        assertEquals("15 C", parsed.get("coolant"));
+        assertEquals("5 C", parsed.get("iat"));
+        assertEquals("30 %", parsed.get("tps"));
+        assertEquals("928 mbar", parsed.get("aap???"));
+    }
+
+    @Test
+    public void testDuplicateFieldsAreReadOnce() throws Exception {
+        List<DiagCommand> commands = CommandPlanner.plan(
+                Arrays.asList(Packages.MISC_PACKAGE, Packages.INJECTOR_CORRECTION_PACKAGE));
+
+        assertEquals(Arrays.asList("21 12", "21 28"), requests(commands));
+        assertEquals(7, commands.get(1).getDiagFields().size());
+
+        Map<String, String> parsed = commands.get(1).parseResponse(RESPONSE_21_28);
+        assertEquals("750 rpm", parsed.get("rpm"));
+        assertEquals("8.1 mg", parsed.get("iq"));
+        assertEquals("-0.05", parsed.get("inj4_cor"));
+    }
+
+    @Test
+    public void testUnchangedCommandsAreReused() throws Exception {
+        List<DiagCommand> commands = CommandPlanner.plan(Arrays.asList(Packages.MISC_PACKAGE));
+
+        assertEquals(Packages.MISC_PACKAGE.getCommands(), commands);
+    }
+
+    @Test
+    public void testRequestedFieldsOnly() throws Exception {
+        List<Field> fields = new ArrayList<>();
+        for (Package pkg : Packages.PACKAGES) {
+            for (Field field : pkg.getFields()) {
+                if (field.getKey().equals("rpm") || field.getKey().equals("coolant")) {
+                    fields.add(field);
+                }
+            }
+        }
+
+        List<DiagCommand> commands = CommandPlanner.plan(Packages.PACKAGES, fields);
+
+        assertEquals(Arrays.asList("21 28", "21 12"), requests(commands));
+        assertEquals(1, commands.get(0).getDiagFields().size());
+        assertEquals(1, commands.get(1).getDiagFields().size());
+        assertEquals("61 12 ", commands.get(1).getResponseHeader());
+    }
+
+    @Test
+    public void testCombinedPackage() throws Exception {
+        Package pkg = CommandPlanner.combine(Arrays.asList(
+                Packages.RAIL_PRESSURE_PACKAGE,
+                Packages.MAF_PACKAGE,
+                Packages.INJECTOR_CORRECTION_PACKAGE));
+
+        assertEquals("Rail pressure + MAF + Injector corrections", pkg.getName());
+        assertEquals(Arrays.asList("21 12", "21 22", "21 20", "21 28"), requests(pkg.getCommands()));
+        assertEquals(11, pkg.getFields().size());
+        // The shared init commands are kept, so the established session is reused.
+        assertSame(Packages.MAF_PACKAGE.getInitCommands(), pkg.getInitCommands());
+        assertEquals(Double.valueOf(10), pkg.getRefreshRates().get("rpm"));
+
+        assertSame(Packages.MAF_PACKAGE, CommandPlanner.combine(Arrays.asList(Packages.MAF_PACKAGE)));
+    }
+}
@@ -0,0 +1,138 @@
+package com.brum.wgdiag.command.diag;
+
+import com.brum.wgdiag.bluetooth.Elm327Simulator;
+import com.brum.wgdiag.command.Command;
+import com.brum.wgdiag.command.diag.impl.CommandPlanner;
+import com.brum.wgdiag.command.diag.impl.DynamicLocalId;
+import com.brum.wgdiag.command.diag.impl.PackageImpl;
+import com.brum.wgdiag.command.impl.DiagUtils;
+import com.brum.wgdiag.command.impl.Utils;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DynamicLocalIdTest {
+
+    private String exchange(Elm327Simulator simulator, String request) {
+        String output = simulator.process(request);
+        return output.substring(0, output.length() - ("\r\r" + Elm327Simulator.PROMPT).length());
+    }
+
+    private Map<String, String> readStatic(Elm327Simulator simulator, Package pkg) {
+        Map<String, String> values = new HashMap<>();
+        for (DiagCommand cmd : pkg.getCommands()) {
+            values.putAll(cmd.parseResponse(exchange(simulator, cmd.getRequestCommand())));
+        }
+        return values;
+    }
+
+    @Test
+    public void testDefinition() throws Exception {
+        DynamicLocalId definition = DynamicLocalId.create(Packages.MISC_PACKAGE);
+
+        assertEquals("2C F0 04", definition.getClearCommand().getRequestCommand());
+        List<String> requests = new ArrayList<>();
+        for (Command cmd : definition.getDefineCommands()) {
+            requests.add(cmd.getRequestCommand());
+        }
+        // Adjacent fields share a range.
+        assertEquals(Arrays.asList(
+                "2C F0 01 01 04 12 01",
+                "2C F0 01 05 02 12 0D",
+                "2C F0 01 07 02 12 1D",
+                "2C F0 01 09 04 28 01"), requests);
+
+        Package pkg = definition.getPackage();
+        assertEquals(1, pkg.getCommands().size());
+        assertEquals("21 F0", pkg.getCommands().get(0).getRequestCommand());
+        assertEquals(6, pkg.getFields().size());
+        assertSame(Packages.MISC_PACKAGE.getInitCommands(), pkg.getInitCommands());
+    }
+
+    @Test
+    public void testDynamicReadMatchesStaticBlocks() throws Exception {
+        for (Package pkg : Arrays.asList(
+                Packages.MISC_PACKAGE,
+                CommandPlanner.combine(Arrays.asList(
+                        Packages.MAP_PACKAGE, Packages.INJECTOR_CORRECTION_PACKAGE)))) {
+            Elm327Simulator simulator = new Elm327Simulator();
+            exchange(simulator, "ATE0");
+            DynamicLocalId definition = DynamicLocalId.create(pkg);
+
+            assertEquals("7F 2C 31", exchange(simulator, definition.getClearCommand().getRequestCommand()));
+            for (Command cmd : definition.getDefineCommands()) {
+                String response = exchange(simulator, cmd.getRequestCommand());
+                assertTrue(response, cmd.verifyResponse(response));
+            }
+
+            DiagCommand read = definition.getPackage().getCommands().get(0);
+            String response = exchange(simulator, read.getRequestCommand());
+            assertTrue(response, read.verifyResponse(response));
+            assertEquals(readStatic(simulator, pkg), read.parseResponse(response));
+        }
+    }
+
+    @Test
+    public void testRefusedDefinition() throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator();
+        simulator.setDynamicLocalIdSupported(false);
+        exchange(simulator, "ATE0");
+
+        Command define = DynamicLocalId.create(Packages.MAF_PACKAGE).getDefineCommands().get(0);
+        String response = exchange(simulator, define.getRequestCommand());
+        assertFalse(response, define.verifyResponse(response));
+        assertTrue(response, Utils.isNegativeResponse(define.getRequestCommand(), response));
+        // A lost response is not a refusal, the definition is tried again with the next session.
+        assertFalse("NO DATA", Utils.isNegativeResponse(define.getRequestCommand(), "NO DATA"));
+    }
+
+    @Test
+    public void testTextFieldsAreNotDefined() throws Exception {
+        assertNull(DynamicLocalId.create(Packages.PACKAGES.get(Packages.PACKAGES.size() - 1)));
+    }
+
+    @Test
+    public void testCommandsSharingLocalId() throws Exception {
+        // Both commands read the bytes at position 20 of 21 12.
+        Package pkg = new PackageImpl(
+                "Shared",
+                "Two commands of one local identifier",
+                Collections.<Command>emptyList(),
+                Arrays.asList(
+                        DiagUtils.createCommand("21 12", "61 12 ", 1000, Arrays.asList(
+                                DiagUtils.createField(2, 2, BigDecimal.ZERO, BigDecimal.ONE, new DecimalFormat("#"), "a", "A"),
+                                DiagUtils.createField(20, 2, BigDecimal.ZERO, BigDecimal.ONE, new DecimalFormat("#"), "b", "B"))),
+                        DiagUtils.createCommand("21 12", "61 12 ", 1000, Arrays.asList(
+                                DiagUtils.createField(20, 2, BigDecimal.ZERO, BigDecimal.TEN, new DecimalFormat("#"), "c", "C")))));
+        DynamicLocalId definition = DynamicLocalId.create(pkg);
+
+        assertEquals(3, definition.getDefineCommands().size());
+        DiagCommand read = definition.getPackage().getCommands().get(0);
+        // Each field is relocated once, into the range of its own command.
+        List<String> keys = new ArrayList<>();
+        for (Field field : read.getDiagFields()) {
+            keys.add(field.getKey());
+        }
+        assertEquals(Arrays.asList("a", "b", "c"), keys);
+
+        Elm327Simulator simulator = new Elm327Simulator();
+        exchange(simulator, "ATE0");
+        for (Command cmd : definition.getDefineCommands()) {
+            String response = exchange(simulator, cmd.getRequestCommand());
+            assertTrue(response, cmd.verifyResponse(response));
+        }
+        String response = exchange(simulator, read.getRequestCommand());
+        assertTrue(response, read.verifyResponse(response));
+        assertEquals(readStatic(simulator, pkg), read.parseResponse(response));
+    }
+}
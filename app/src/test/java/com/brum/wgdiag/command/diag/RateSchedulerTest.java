@@ -0,0 +1,94 @@
+package com.brum.wgdiag.command.diag;
+
+import com.brum.wgdiag.command.diag.impl.RateScheduler;
+import com.brum.wgdiag.command.impl.DiagUtils;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RateSchedulerTest {
+    private static final DiagCommand FAST = DiagUtils.createCommand("21 28", "61 28 ", 1000,
+            Arrays.asList(
+                    DiagUtils.createField(2, 2, BigDecimal.ZERO, BigDecimal.ONE, new DecimalFormat("#"), "rpm", "RPM"),
+                    DiagUtils.createField(4, 2, BigDecimal.ZERO, BigDecimal.ONE, new DecimalFormat("#"), "iq", "IQ")));
+    private static final DiagCommand SLOW = DiagUtils.createCommand("21 12", "61 12 ", 1000,
+            Arrays.asList(
+                    DiagUtils.createField(2, 2, BigDecimal.ZERO, BigDecimal.ONE, new DecimalFormat("#"), "coolant", "Coolant")));
+
+    private Map<String, Double> rates(double fast, double slow) {
+        Map<String, Double> rates = new HashMap<>();
+        rates.put("rpm", fast);
+        rates.put("coolant", slow);
+        return rates;
+    }
+
+    @Test
+    public void testCommandsAreInterleavedByRate() throws Exception {
+        List<DiagCommand> commands = Arrays.asList(SLOW, FAST);
+        RateScheduler scheduler = new RateScheduler(commands, rates(10, 1));
+
+        // The first cycle executes every command once.
+        assertSame(SLOW, scheduler.next(0));
+        assertSame(FAST, scheduler.next(0));
+
+        // The link is faster than required - the commands are interleaved proportionally.
+        int fast = 0;
+        int slow = 0;
+        for (int i = 0; i < 110; i++) {
+            if (scheduler.next(i) == FAST) {
+                fast++;
+            } else {
+                slow++;
+            }
+        }
+        assertEquals(100, fast);
+        assertEquals(10, slow);
+        assertFalse(scheduler.isOverloaded());
+    }
+
+    @Test
+    public void testFieldRateDefinesCommandRate() throws Exception {
+        RateScheduler scheduler = new RateScheduler(Arrays.asList(SLOW, FAST), rates(10, 1));
+        // iq has the default rate, but rpm is faster.
+        assertEquals(11, scheduler.getRequestedRate(), 1e-9);
+
+        scheduler = new RateScheduler(Arrays.asList(SLOW, FAST), new HashMap<String, Double>());
+        assertEquals(2 * RateScheduler.DEFAULT_REFRESH_RATE, scheduler.getRequestedRate(), 1e-9);
+    }
+
+    @Test
+    public void testOverloadIsReported() throws Exception {
+        RateScheduler scheduler = new RateScheduler(Arrays.asList(SLOW, FAST), rates(10, 1));
+        assertEquals(0, scheduler.getLoad(), 1e-9);
+
+        // 11 commands per second are requested, the link can do 5.
+        for (long now = 0; now <= 10000; now += 200) {
+            scheduler.next(now);
+        }
+        assertTrue(scheduler.isOverloaded());
+        assertEquals(11.0 / 5, scheduler.getLoad(), 0.1);
+
+        // A stall doesn't cause a burst of the slow command afterwards.
+        int slow = 0;
+        for (long now = 10200; now < 15000; now += 200) {
+            if (scheduler.next(now) == SLOW) {
+                slow++;
+            }
+        }
+        assertTrue("Slow executed " + slow, slow <= 5);
+
+        // 11 commands per second are requested, the link can do 20.
+        for (long now = 15000; now <= 30000; now += 50) {
+            scheduler.next(now);
+        }
+        assertFalse(scheduler.isOverloaded());
+    }
+}
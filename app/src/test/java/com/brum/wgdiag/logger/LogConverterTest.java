@@ -0,0 +1,95 @@
+package com.brum.wgdiag.logger;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogConverterTest {
+
+    private List<String> readLines(File file) throws Exception {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    @Test
+    public void testBinaryLogIsConvertedToCsv() throws Exception {
+        File binary = File.createTempFile("log", ".wgl");
+        File csv = File.createTempFile("log", ".csv");
+        try {
+            LogWriter writer = new LogWriter(binary);
+            writer.writeHeader(Arrays.asList("a", "b"));
+            writer.writeRow(12345, new double[] { 14.699999999999989, -0.05 }, 2);
+            // Delta too large for a data record.
+            writer.writeRow(100012, new double[] { 9999.9, 750 }, 2);
+            writer.writeSeparator();
+            writer.writeSeparator();
+            writer.writeHeader(Arrays.asList("c"));
+            writer.writeRow(100112, new double[] { 5 }, 1);
+            writer.close();
+
+            LogConverter.toCsv(binary, csv);
+
+            assertEquals(Arrays.asList(
+                    "timestamp,a,b,",
+                    "12.3,14.7,-0.05,",
+                    "100,9999.9,750,",
+                    "",
+                    "",
+                    "timestamp,c,",
+                    "100.1,5,"), readLines(csv));
+        } finally {
+            binary.delete();
+            csv.delete();
+        }
+    }
+
+    @Test
+    public void testHeaderIsKeptWhenQueueIsFull() throws Exception {
+        File binary = File.createTempFile("log", ".wgl");
+        File csv = File.createTempFile("log", ".csv");
+        try {
+            // The writer thread is started only after the queue is full.
+            LogWriter writer = new LogWriter(binary, false);
+            writer.writeHeader(Arrays.asList("a", "b"));
+            for (int i = 0; i < 1000; i++) {
+                writer.writeRow(i, new double[] { 1, 2 }, 2);
+            }
+            writer.writeSeparator();
+            writer.writeSeparator();
+            assertTrue("Header must be queued", writer.writeHeader(Arrays.asList("c")));
+            writer.start();
+            writer.close();
+            assertTrue("Rows must be dropped", writer.getDropped() > 0);
+
+            LogConverter.toCsv(binary, csv);
+
+            List<String> lines = readLines(csv);
+            assertEquals("timestamp,a,b,", lines.get(0));
+            assertEquals("0,1,2,", lines.get(1));
+            assertEquals(Arrays.asList("", "", "timestamp,c,"),
+                    lines.subList(lines.size() - 3, lines.size()));
+            for (String line : lines.subList(1, lines.size() - 3)) {
+                assertTrue(line, line.endsWith(",1,2,"));
+            }
+        } finally {
+            binary.delete();
+            csv.delete();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.brum.wgdiag.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValues() throws Exception {
+        long[] values = { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = Histogram.bucketIndex(value);
+            long upperBound = Histogram.bucketUpperBound(index);
+            assertTrue("Value " + value, value <= upperBound);
+            assertTrue("Value " + value, index == 0 || Histogram.bucketUpperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean(), 1e-6);
+        assertEquals(500000, histogram.getPercentile(50), 500000 / Histogram.SUB_BUCKETS);
+        assertEquals(990000, histogram.getPercentile(99), 990000 / Histogram.SUB_BUCKETS);
+        assertEquals(1000000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void testNegativeValuesAreRecordedAsZero() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+}
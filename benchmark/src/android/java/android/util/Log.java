@@ -0,0 +1,40 @@
+package android.util;
+
+/**
+ * JVM replacement of the Android Log, used by the benchmarks. Only warnings and errors are printed.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return e(tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return e(tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        tr.printStackTrace();
+        return 0;
+    }
+}
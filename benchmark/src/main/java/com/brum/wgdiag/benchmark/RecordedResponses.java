@@ -0,0 +1,56 @@
+package com.brum.wgdiag.benchmark;
+
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Packages;
+import com.brum.wgdiag.command.diag.impl.CommandPlanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diag responses recorded from the vehicle, and the commands that decode them.
+ */
+public class RecordedResponses {
+    public static final Map<String, String> RESPONSES;
+    static {
+        Map<String, String> responses = new HashMap<>();
+        responses.put(
+            "21 12",
+            "61 12 0B 3E 0A DB 08 B7 08 B7 00 00 02 FD 0B A1 02 4A 03 AE 0B BB 01 32 01 2B 00 6F 09 7F 03 A0 00 00");
+        responses.put(
+            "21 20",
+            "61 20 03 5A 03 3C 03 FE 00 01 00 94 00 4A 01 B3 01 6E 01 0C 03 02 02 66 00 84 00 5C 03 A0 03 03");
+        responses.put(
+            "21 22",
+            "61 22 0B 43 0A DD 08 B7 08 B7 00 00 00 00 02 43 03 AD 0B CD 03 B8 02 67 02 E4 02 E4 02 85 08 B7 00 0C");
+        responses.put(
+            "21 28",
+            "61 28 02 EE 03 2C 02 EE 02 EE 02 EC 02 EE 02 EE 00 00 00 CC FF 3C 00 68 FF FB FF 94 00 00 F6");
+        RESPONSES = Collections.unmodifiableMap(responses);
+    }
+
+    /**
+     * The requests of the recorded responses, in the order they are benchmarked.
+     */
+    public static final List<String> REQUESTS = Arrays.asList("21 12", "21 20", "21 22", "21 28");
+
+    /**
+     * @return single command for each recorded request, decoding all fields of all packages.
+     */
+    public static List<DiagCommand> getCommands() {
+        Map<String, DiagCommand> commands = new HashMap<>();
+        for (DiagCommand cmd : CommandPlanner.plan(Packages.PACKAGES)) {
+            commands.put(cmd.getRequestCommand(), cmd);
+        }
+
+        List<DiagCommand> result = new ArrayList<>();
+        for (String request : REQUESTS) {
+            result.add(commands.get(request));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+package com.brum.wgdiag.bluetooth;
+
+import com.brum.wgdiag.benchmark.RecordedResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembly of the multi-frame ISO-TP responses received over CAN, as the frame lines are read
+ * from the serial input stream in chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsoTpFramerBenchmark {
+    @Param({"21 12", "21 28"})
+    public String request;
+
+    @Param({"16", "256"})
+    public int chunkSize;
+
+    private final IsoTpFramer framer = new IsoTpFramer(1024, 3);
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        String[] bytes = RecordedResponses.RESPONSES.get(this.request).split(" ");
+        StringBuilder output = new StringBuilder();
+        output.append(String.format(Locale.US, "7E8 10 %02X", bytes.length));
+        int position = 0;
+        for (int sequence = 1; position < bytes.length; sequence = (sequence + 1) & 0xF) {
+            if (position > 0) {
+                output.append(String.format(Locale.US, "\r7E8 2%01X", sequence));
+            }
+            int end = position == 0 ? 6 : position + 7;
+            for (; position < end; position++) {
+                output.append(' ').append(position < bytes.length ? bytes[position] : "55");
+            }
+        }
+        this.output = output.append("\r\r>").toString().getBytes();
+    }
+
+    @Benchmark
+    public String frame() {
+        this.framer.reset(null);
+        for (int offset = 0; offset < this.output.length; offset += this.chunkSize) {
+            int length = Math.min(this.chunkSize, this.output.length - offset);
+            if (this.framer.feed(this.output, offset, length)) {
+                break;
+            }
+        }
+        return this.framer.getResponse();
+    }
+}
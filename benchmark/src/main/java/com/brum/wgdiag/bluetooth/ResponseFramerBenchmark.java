@@ -0,0 +1,56 @@
+package com.brum.wgdiag.bluetooth;
+
+import com.brum.wgdiag.benchmark.RecordedResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing of the raw adapter output - echo, response lines and prompt - as it is read from the
+ * serial input stream in chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseFramerBenchmark {
+    @Param({"21 12", "21 28"})
+    public String request;
+
+    @Param({"16", "256"})
+    public int chunkSize;
+
+    private final ResponseFramer framer = new ResponseFramer(1024);
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        String response = RecordedResponses.RESPONSES.get(this.request);
+        this.output = (this.request + "\r" + response + "\r\r>").getBytes();
+    }
+
+    @Benchmark
+    public String frame() {
+        this.framer.reset(this.request);
+        for (int offset = 0; offset < this.output.length; offset += this.chunkSize) {
+            int length = Math.min(this.chunkSize, this.output.length - offset);
+            if (this.framer.feed(this.output, offset, length)) {
+                break;
+            }
+        }
+        return this.framer.getResponse();
+    }
+}
@@ -0,0 +1,85 @@
+package com.brum.wgdiag.command.diag;
+
+import com.brum.wgdiag.benchmark.RecordedResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a recorded response into the values of all fields requested with it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"21 12", "21 20", "21 22", "21 28"})
+    public String request;
+
+    private DiagCommand command;
+    private String response;
+    private DiagResponse parsed;
+    private Field firstField;
+    private double[] values;
+
+    @Setup
+    public void setUp() {
+        for (DiagCommand cmd : RecordedResponses.getCommands()) {
+            if (cmd.getRequestCommand().equals(this.request)) {
+                this.command = cmd;
+            }
+        }
+        this.response = RecordedResponses.RESPONSES.get(this.request);
+        this.parsed = this.command.parse(this.response);
+        this.firstField = this.command.getDiagFields().get(0);
+        this.values = new double[this.command.getDiagFields().size()];
+    }
+
+    /**
+     * The formatted strings, as used for the display before the primitive path was added.
+     */
+    @Benchmark
+    public Map<String, String> parseResponseText() {
+        return this.command.parseResponse(this.response);
+    }
+
+    @Benchmark
+    public Map<String, BigDecimal> parseResponseDecimal() {
+        return this.command.parseResponseValues(this.response);
+    }
+
+    @Benchmark
+    public BigDecimal fieldToDecimal() {
+        return this.firstField.toDecimal(this.parsed);
+    }
+
+    @Benchmark
+    public double fieldToDouble() {
+        return this.firstField.toDouble(this.parsed);
+    }
+
+    /**
+     * The per-sample path - tokenize once and decode all fields as primitives.
+     */
+    @Benchmark
+    public void parseAndDecodePrimitive(Blackhole blackhole) {
+        this.command.parseResponseValues(this.command.parse(this.response), this.values);
+        blackhole.consume(this.values);
+    }
+}
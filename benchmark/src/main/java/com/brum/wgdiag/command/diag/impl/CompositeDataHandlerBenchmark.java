@@ -0,0 +1,67 @@
+package com.brum.wgdiag.command.diag.impl;
+
+import com.brum.wgdiag.benchmark.RecordedResponses;
+import com.brum.wgdiag.command.diag.DataFrame;
+import com.brum.wgdiag.command.diag.DataHandler;
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.Package;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of a decoded data frame to the registered handlers. Each handler reads all values of the
+ * frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeDataHandlerBenchmark {
+    @Param({"1", "2", "4"})
+    public int handlerCount;
+
+    private final CompositeDataHandler composite = new CompositeDataHandler();
+    private DataFrame frame;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        DiagCommand cmd = RecordedResponses.getCommands().get(0);
+        this.frame = new DataFrame(cmd);
+        this.frame.set(0, cmd.parse(RecordedResponses.RESPONSES.get(cmd.getRequestCommand())));
+
+        for (int i = 0; i < this.handlerCount; i++) {
+            this.composite.registerHandler("handler" + i, new DataHandler() {
+                @Override
+                public void handle(DataFrame frame) {
+                    for (int i = 0; i < frame.size(); i++) {
+                        blackhole.consume(frame.getValue(i));
+                    }
+                }
+
+                @Override
+                public void switchPackage(Package pkg) {
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void handle() {
+        this.composite.handle(this.frame);
+    }
+}
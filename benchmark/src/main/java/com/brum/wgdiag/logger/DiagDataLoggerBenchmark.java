@@ -0,0 +1,98 @@
+package com.brum.wgdiag.logger;
+
+import com.brum.wgdiag.benchmark.RecordedResponses;
+import com.brum.wgdiag.command.diag.DataFrame;
+import com.brum.wgdiag.command.diag.DiagCommand;
+import com.brum.wgdiag.command.diag.DiagResponse;
+import com.brum.wgdiag.command.diag.Package;
+import com.brum.wgdiag.command.diag.Packages;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logging of decoded data frames. The rows are encoded and written by the background writer, so
+ * only the producer side is measured here. The writer drops rows when it can't keep up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiagDataLoggerBenchmark {
+    private File logDirectory;
+    private DataFrame[] frames;
+    private DiagResponse[] responses;
+    private int next = 0;
+    private long timestamp = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.logDirectory = File.createTempFile("benchmark", "");
+        this.logDirectory.delete();
+        this.logDirectory.mkdirs();
+        DiagDataLogger.setLogDirectory(this.logDirectory);
+
+        List<DiagCommand> commands = RecordedResponses.getCommands();
+        this.frames = new DataFrame[commands.size()];
+        this.responses = new DiagResponse[commands.size()];
+        for (int i = 0; i < this.frames.length; i++) {
+            DiagCommand cmd = commands.get(i);
+            this.frames[i] = new DataFrame(cmd);
+            this.responses[i] = cmd.parse(RecordedResponses.RESPONSES.get(cmd.getRequestCommand()));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startLog() {
+        // The package with the most fields, in a new log.
+        Package logged = Packages.PACKAGES.get(0);
+        for (Package pkg : Packages.PACKAGES) {
+            if (pkg.getFields().size() > logged.getFields().size()) {
+                logged = pkg;
+            }
+        }
+        DiagDataLogger.reset();
+        DiagDataLogger.setDiagPackage(logged);
+    }
+
+    @TearDown(Level.Iteration)
+    public void completeLog() {
+        DiagDataLogger.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = this.logDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.logDirectory.delete();
+    }
+
+    @Benchmark
+    public void addData() {
+        DataFrame frame = this.frames[this.next];
+        frame.set(++this.timestamp, this.responses[this.next]);
+        this.next = (this.next + 1) % this.frames.length;
+        DiagDataLogger.addData(frame);
+    }
+}